@@ -1,9 +1,22 @@
 package org.jchmlib.app;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jchmlib.ChmCollectFilesEnumerator;
 import org.jchmlib.ChmEnumerator;
 import org.jchmlib.ChmFile;
 import org.jchmlib.ChmUnitInfo;
@@ -13,8 +26,23 @@ public class ChmExtract {
 
     public static void main(String[] argv) throws IOException {
 
-        if (argv.length < 1) {
-            System.out.println("Usage: ChmExtract <chmfile> <output-directory>");
+        int threads = 0;
+        if (argv.length >= 2 && argv[0].equals("-j")) {
+            try {
+                threads = Integer.parseInt(argv[1]);
+            } catch (NumberFormatException ignored) {
+            }
+            if (threads <= 0) {
+                threads = Runtime.getRuntime().availableProcessors();
+            }
+            String[] rest = new String[argv.length - 2];
+            System.arraycopy(argv, 2, rest, 0, rest.length);
+            argv = rest;
+        }
+
+        if (argv.length < 2) {
+            System.out.println("Usage: ChmExtract [-j <threads>] <chmfile> <output-directory>");
+            System.out.println("    -j: extract in parallel, decompressing each reset interval once");
             return;
         }
 
@@ -23,8 +51,13 @@ public class ChmExtract {
         ChmFile chmFile = new ChmFile(argv[0]);
 
         System.out.println("/:" + argv[0]);
-        chmFile.enumerate(ChmFile.CHM_ENUMERATE_ALL,
-                new Extractor(chmFile, argv[1]));
+        if (threads > 0) {
+            new ParallelExtractor(chmFile, argv[1], threads).extract();
+        } else {
+            // in storage order, each block is decompressed once
+            chmFile.enumerate(ChmFile.CHM_ENUMERATE_ALL | ChmFile.CHM_ENUMERATE_STORAGE_ORDER,
+                    new Extractor(chmFile, argv[1]));
+        }
         long time = System.currentTimeMillis();
         System.out.println("    finished in " + (time - time_prev) + " ms");
         System.out.println();
@@ -58,9 +91,15 @@ class Extractor implements ChmEnumerator {
         String fullPath = new File(basePath, path).toString();
 
         if (length != 0) {
-            PrintStream out = null;
+            // directories are not necessarily enumerated before their files
+            File parent = new File(fullPath).getParentFile();
+            if (parent != null) {
+                parent.mkdirs();
+            }
+
+            OutputStream out = null;
             try {
-                out = new PrintStream(fullPath);
+                out = new FileOutputStream(fullPath);
             } catch (IOException e) {
                 System.out.println("   fail while opening the newly created file "
                         + path);
@@ -71,21 +110,22 @@ class Extractor implements ChmEnumerator {
                 return;
             }
 
-            ByteBuffer buffer = chmFile.retrieveObject(ui, 0, length);
-            if (buffer == null) {
+            InputStream in = chmFile.openStream(ui);
+            try {
+                byte[] buffer = new byte[8192];
+                int size;
+                while ((size = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, size);
+                }
+            } catch (IOException e) {
                 System.out.println("    extract failed on " + path);
-                return;
-            }
-            int gotLen = buffer.limit() - buffer.position();
-            byte[] bytes = new byte[gotLen];
-
-            buffer.mark();
-            while (buffer.hasRemaining()) {
-                buffer.get(bytes);
-                out.write(bytes, 0, gotLen);
+            } finally {
+                try {
+                    in.close();
+                    out.close();
+                } catch (IOException ignored) {
+                }
             }
-            buffer.reset();
-            out.close();
         } else {
             if (fullPath.endsWith("/")) {
                 new File(fullPath).mkdirs();
@@ -95,3 +135,238 @@ class Extractor implements ChmEnumerator {
         }
     }
 }
+
+/**
+ * Extracts all files in a CHM archive on a pool of threads.
+ * <p>
+ * Instead of decompressing files one by one, which decompresses the same
+ * reset intervals again and again, every reset interval of the compressed
+ * section is decompressed exactly once, and written to all files overlapping it.
+ */
+class ParallelExtractor {
+
+    private static final long PROGRESS_INTERVAL_MS = 1000;
+
+    private final ChmFile chmFile;
+    private final File baseDir;
+    private final int threads;
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicInteger intervalsDone = new AtomicInteger();
+    private final AtomicInteger failures = new AtomicInteger();
+
+    public ParallelExtractor(ChmFile chmFile, String basePath, int threads) {
+        this.chmFile = chmFile;
+        this.baseDir = new File(basePath);
+        this.threads = Math.max(threads, 1);
+    }
+
+    public void extract() {
+        ChmCollectFilesEnumerator collector = new ChmCollectFilesEnumerator();
+        chmFile.enumerate(ChmFile.CHM_ENUMERATE_ALL | ChmFile.CHM_ENUMERATE_STORAGE_ORDER,
+                collector);
+
+        // create all files first, so that workers only write to them.
+        List<ChmUnitInfo> compressed = new ArrayList<ChmUnitInfo>();
+        List<ChmUnitInfo> uncompressed = new ArrayList<ChmUnitInfo>();
+        for (ChmUnitInfo ui : collector.files) {
+            if (!ui.getPath().startsWith("/") || !createFile(ui)) {
+                continue;
+            }
+            if (ui.isCompressed()) {
+                compressed.add(ui);
+            } else {
+                uncompressed.add(ui);
+            }
+        }
+
+        List<List<ChmUnitInfo>> filesByInterval = groupByInterval(compressed);
+        int intervalCount = filesByInterval.size();
+
+        chmFile.setInflatorPoolSize(threads);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < intervalCount; i++) {
+            final int interval = i;
+            final List<ChmUnitInfo> files = filesByInterval.get(i);
+            executor.execute(new Runnable() {
+                public void run() {
+                    if (!files.isEmpty()) {
+                        extractInterval(interval, files);
+                    }
+                    intervalsDone.incrementAndGet();
+                }
+            });
+        }
+        for (final ChmUnitInfo ui : uncompressed) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    extractUncompressed(ui);
+                }
+            });
+        }
+        executor.shutdown();
+
+        long startTime = System.currentTimeMillis();
+        try {
+            while (!executor.awaitTermination(PROGRESS_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+                printProgress(intervalCount, startTime);
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        printProgress(intervalCount, startTime);
+
+        if (failures.get() > 0) {
+            System.out.println("    " + failures.get() + " failures");
+        }
+    }
+
+    private void printProgress(int intervalCount, long startTime) {
+        long elapsed = Math.max(System.currentTimeMillis() - startTime, 1);
+        long bytes = bytesWritten.get();
+        System.out.println(String.format("    %d/%d reset intervals, %.1f MB written, %.1f MB/s",
+                intervalsDone.get(), intervalCount, bytes / 1048576.0,
+                bytes / 1048576.0 * 1000 / elapsed));
+    }
+
+    /**
+     * @return the lists of compressed files overlapping each reset interval.
+     */
+    private List<List<ChmUnitInfo>> groupByInterval(List<ChmUnitInfo> compressed) {
+        int intervalCount = chmFile.getResetIntervalCount();
+        long[] starts = new long[intervalCount + 1];
+        List<List<ChmUnitInfo>> result = new ArrayList<List<ChmUnitInfo>>(intervalCount);
+        for (int i = 0; i <= intervalCount; i++) {
+            starts[i] = chmFile.getResetIntervalStart(i);
+            if (i < intervalCount) {
+                result.add(new ArrayList<ChmUnitInfo>());
+            }
+        }
+
+        Collections.sort(compressed, new Comparator<ChmUnitInfo>() {
+            public int compare(ChmUnitInfo a, ChmUnitInfo b) {
+                return a.getStart() < b.getStart() ? -1 :
+                        (a.getStart() == b.getStart() ? 0 : 1);
+            }
+        });
+
+        int interval = 0;
+        for (ChmUnitInfo ui : compressed) {
+            while (interval < intervalCount && starts[interval + 1] <= ui.getStart()) {
+                interval++;
+            }
+            long end = ui.getStart() + ui.getLength();
+            for (int i = interval; i < intervalCount && starts[i] < end; i++) {
+                result.get(i).add(ui);
+            }
+            if (interval == intervalCount || end > starts[intervalCount]) {
+                System.out.println("    " + ui.getPath() + " is beyond compressed content");
+                failures.incrementAndGet();
+            }
+        }
+
+        return result;
+    }
+
+    private void extractInterval(int interval, List<ChmUnitInfo> files) {
+        ByteBuffer buf = chmFile.decompressResetInterval(interval);
+        if (buf == null) {
+            System.out.println("    fail to decompress reset interval " + interval);
+            failures.addAndGet(files.size());
+            return;
+        }
+
+        long intervalStart = chmFile.getResetIntervalStart(interval);
+        long intervalEnd = intervalStart + buf.remaining();
+        for (ChmUnitInfo ui : files) {
+            long start = Math.max(ui.getStart(), intervalStart);
+            long end = Math.min(ui.getStart() + ui.getLength(), intervalEnd);
+            int offset = buf.arrayOffset() + buf.position() + (int) (start - intervalStart);
+            try {
+                RandomAccessFile out = new RandomAccessFile(getFile(ui), "rw");
+                try {
+                    writeAt(out, start - ui.getStart(), buf.array(), offset, (int) (end - start));
+                } finally {
+                    out.close();
+                }
+            } catch (IOException e) {
+                System.out.println("    extract failed on " + ui.getPath());
+                failures.incrementAndGet();
+            }
+        }
+    }
+
+    private void extractUncompressed(ChmUnitInfo ui) {
+        InputStream in = chmFile.openStream(ui);
+        RandomAccessFile out = null;
+        try {
+            out = new RandomAccessFile(getFile(ui), "rw");
+            byte[] buffer = new byte[65536];
+            long pos = 0;
+            int size;
+            while ((size = in.read(buffer)) != -1) {
+                writeAt(out, pos, buffer, 0, size);
+                pos += size;
+            }
+        } catch (IOException e) {
+            System.out.println("    extract failed on " + ui.getPath());
+            failures.incrementAndGet();
+        } finally {
+            try {
+                in.close();
+                if (out != null) {
+                    out.close();
+                }
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void writeAt(RandomAccessFile out, long pos, byte[] bytes, int offset, int len)
+            throws IOException {
+        out.seek(pos);
+        out.write(bytes, offset, len);
+        bytesWritten.addAndGet(len);
+    }
+
+    private File getFile(ChmUnitInfo ui) {
+        return new File(baseDir, ui.getPath());
+    }
+
+    /**
+     * Creates the directory, or the file with its final length.
+     * Empty files are deleted instead, as {@link Extractor} does.
+     *
+     * @return whether there is content to write to the file.
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    private boolean createFile(ChmUnitInfo ui) {
+        File file = getFile(ui);
+        if (ui.getPath().endsWith("/")) {
+            file.mkdirs();
+            return false;
+        }
+        if (ui.getLength() == 0) {
+            file.delete();
+            return false;
+        }
+
+        File parent = file.getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        try {
+            RandomAccessFile out = new RandomAccessFile(file, "rw");
+            try {
+                out.setLength(ui.getLength());
+            } finally {
+                out.close();
+            }
+            return true;
+        } catch (IOException e) {
+            System.out.println("   fail to create file " + ui.getPath());
+            failures.incrementAndGet();
+            return false;
+        }
+    }
+}
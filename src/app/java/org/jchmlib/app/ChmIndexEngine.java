@@ -4,7 +4,12 @@ import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -24,6 +29,8 @@ import java.util.logging.Logger;
 import org.jchmlib.AbstractIndexSearcher;
 import org.jchmlib.ChmCollectFilesEnumerator;
 import org.jchmlib.ChmFile;
+import org.jchmlib.ChmObjectHandler;
+import org.jchmlib.ChmStopEnumeration;
 import org.jchmlib.ChmUnitInfo;
 
 public class ChmIndexEngine extends AbstractIndexSearcher {
@@ -190,124 +197,85 @@ public class ChmIndexEngine extends AbstractIndexSearcher {
         buildIndexStep.set(0);
 
         ChmCollectFilesEnumerator enumerator = new ChmCollectFilesEnumerator();
-        chmFile.enumerate(ChmFile.CHM_ENUMERATE_USER, enumerator);
-
-        int totalFileCount = enumerator.files.size();
-        LOG.info("files count: " + totalFileCount);
-        int perStep = Math.max(totalFileCount / 100, 1);
-
-        HashMap<String, DocumentsForWord> wordToDocuments = new HashMap<String, DocumentsForWord>();
-        HashMap<Integer, String> docIdToUrl = new LinkedHashMap<Integer, String>();
-
-        int filesProcessed = -1;
-        int docID = -1;
-        int partitionID = -1;
-        int partitionDocCount = 0;
-        long partitionWordCount = 0;
+        chmFile.enumerate(ChmFile.CHM_ENUMERATE_USER | ChmFile.CHM_ENUMERATE_STORAGE_ORDER,
+                enumerator);
 
+        ArrayList<ChmUnitInfo> textFiles = new ArrayList<ChmUnitInfo>();
         for (ChmUnitInfo ui : enumerator.files) {
-            filesProcessed++;
-
-            if (buildIndexStep.get() < 0) { // interrupted
-                break;
-            }
-            if (filesProcessed % perStep == 0) {
-                buildIndexStep.set(Math.min(buildIndexStep.get() + 1, 99));
-                LOG.info("Building index step " + buildIndexStep.get());
-                LOG.info("total word count " + partitionWordCount);
-                LOG.info("filesProcessed " + filesProcessed + "/" + totalFileCount + " docID "
-                        + docID);
-
-                if (partitionDocCount >= 5000 || partitionWordCount >= 10000000) { // FIXME
-                    partitionID++;
-                    saveIndexPartition(partitionID, docIdToUrl, wordToDocuments);
-                    wordToDocuments = new LinkedHashMap<String, DocumentsForWord>();
-                    docIdToUrl = new LinkedHashMap<Integer, String>();
-                    partitionDocCount = 0;
-                    partitionWordCount = 0;
-                }
-            }
-
-            if (!isTextFile(ui)) {
-                continue;
+            if (isTextFile(ui)) {
+                textFiles.add(ui);
             }
+        }
 
-            String content = chmFile.retrieveObjectAsString(ui);
-            if (content == null || content.length() == 0) {
-                continue;
-            }
+        LOG.info("files count: " + enumerator.files.size() + ", text files count: "
+                + textFiles.size());
 
-            List<String> words = parse(content);
-            if (words.size() == 0) {
-                continue;
-            }
-            partitionWordCount += words.size();
-
-            partitionDocCount++;
-            docID++;
-            docIdToUrl.put(docID, ui.getPath());
+        // every block is decompressed once, instead of once per file in it
+        IndexBuilder builder = new IndexBuilder(textFiles.size());
+        chmFile.retrieveObjects(textFiles, builder);
+        if (builder.error != null) {
+            throw builder.error;
+        }
 
-            HashMap<String, LocationsInDocument> wordToLocations = new HashMap<String, LocationsInDocument>();
-            int wordLocation = -1;
-            for (String word : words) {
-                wordLocation++;
+        builder.partitionID++;
+        saveIndexPartition(builder.partitionID, builder.docIdToUrl, builder.wordToDocuments);
 
-                if (word.length() > 16 || stopWords.contains(word)) {
-                    continue;
-                }
+        mergeIndexPartitions(builder.partitionID + 1);
 
-                LocationsInDocument locationsInDocument;
-                if (wordToLocations.containsKey(word)) {
-                    locationsInDocument = wordToLocations.get(word);
-                } else {
-                    locationsInDocument = new LocationsInDocument(docID, ui.getPath());
-                    wordToLocations.put(word, locationsInDocument);
-                }
-                if (!highFreqWords.contains(word)) {
-                    locationsInDocument.locations.add(wordLocation);
-                }
-                locationsInDocument.totalFrequency += 1;
-            }
-
-            for (Entry<String, LocationsInDocument> entry : wordToLocations.entrySet()) {
-                String word = entry.getKey();
-                LocationsInDocument locationsInDocument = entry.getValue();
+        LOG.info("Finished building index for " + chmFile.getTitle());
 
-                if (locationsInDocument.locations.size() > 500) {
-                    locationsInDocument.locations.clear();
-                }
+        readIndex();
+    }
 
-                DocumentsForWord documentsForWord;
-                if (wordToDocuments.containsKey(word)) {
-                    documentsForWord = wordToDocuments.get(word);
+    /**
+     * Decodes the content of a CHM unit retrieved with {@link ChmFile#retrieveObjects}.
+     */
+    private String decodeContent(ByteBuffer buf) {
+        if (buf == null) {
+            return null;
+        }
+        byte[] bytes = new byte[buf.remaining()];
+        buf.duplicate().get(bytes);
+        try {
+            return new String(bytes, chmFile.getEncoding());
+        } catch (UnsupportedEncodingException ignored) {
+            return new String(bytes);
+        }
+    }
 
-                } else {
-                    documentsForWord = new DocumentsForWord();
-                    wordToDocuments.put(word, documentsForWord);
-                }
-                documentsForWord.documents.add(locationsInDocument);
+    /**
+     * Reads the content of a CHM unit as a string,
+     * decoding it while it is decompressed.
+     */
+    private String readContent(ChmUnitInfo ui) {
+        InputStream in = chmFile.openStream(ui);
+        if (in == null) {
+            return null;
+        }
 
-                // ignore locations of high frequency word
-                int wordDocCount = documentsForWord.documents.size();
-                if (wordDocCount > 1000 && wordDocCount >= partitionDocCount * 0.95) {
-                    // LOG.fine(String.format("high frequency word %s, %d/%d",
-                    // word, wordDocCount, partitionDocCount));
-                    for (LocationsInDocument lid : documentsForWord.documents) {
-                        lid.locations.clear();
-                    }
-                    highFreqWords.add(word);
-                }
+        try {
+            Reader reader;
+            try {
+                reader = new InputStreamReader(in, chmFile.getEncoding());
+            } catch (UnsupportedEncodingException ignored) {
+                reader = new InputStreamReader(in);
+            }
+            StringBuilder sb = new StringBuilder((int) Math.min(ui.getLength(), 1 << 20));
+            char[] buffer = new char[8192];
+            int size;
+            while ((size = reader.read(buffer)) != -1) {
+                sb.append(buffer, 0, size);
+            }
+            return sb.toString();
+        } catch (IOException e) {
+            LOG.fine("Failed to read " + ui.getPath() + ": " + e);
+            return null;
+        } finally {
+            try {
+                in.close();
+            } catch (Throwable ignore) {
             }
         }
-
-        partitionID++;
-        saveIndexPartition(partitionID, docIdToUrl, wordToDocuments);
-
-        mergeIndexPartitions(partitionID + 1);
-
-        LOG.info("Finished building index for " + chmFile.getTitle());
-
-        readIndex();
     }
 
     private Set<Integer> getLocations(String targetWord, String url) {
@@ -318,7 +286,7 @@ public class ChmIndexEngine extends AbstractIndexSearcher {
             return locations;
         }
 
-        String content = chmFile.retrieveObjectAsString(ui);
+        String content = readContent(ui);
         if (content == null || content.length() == 0) {
             return locations;
         }
@@ -542,6 +510,124 @@ public class ChmIndexEngine extends AbstractIndexSearcher {
         OUTSIDE_TAGS, IN_HTML_TAG, IN_QUOTES, IN_HTML_ENTITY
     }
 
+    /**
+     * Adds the text files to the index partitions, as their contents are retrieved.
+     */
+    class IndexBuilder implements ChmObjectHandler {
+
+        private final int totalFileCount;
+        private final int perStep;
+        HashMap<String, DocumentsForWord> wordToDocuments = new HashMap<String, DocumentsForWord>();
+        HashMap<Integer, String> docIdToUrl = new LinkedHashMap<Integer, String>();
+        IOException error = null;
+        int partitionID = -1;
+        private int filesProcessed = -1;
+        private int docID = -1;
+        private int partitionDocCount = 0;
+        private long partitionWordCount = 0;
+
+        IndexBuilder(int totalFileCount) {
+            this.totalFileCount = totalFileCount;
+            perStep = Math.max(totalFileCount / 100, 1);
+        }
+
+        public void handleObject(ChmUnitInfo ui, ByteBuffer buf) throws ChmStopEnumeration {
+            filesProcessed++;
+
+            if (buildIndexStep.get() < 0) { // interrupted
+                throw new ChmStopEnumeration();
+            }
+            if (filesProcessed % perStep == 0) {
+                buildIndexStep.set(Math.min(buildIndexStep.get() + 1, 99));
+                LOG.info("Building index step " + buildIndexStep.get());
+                LOG.info("total word count " + partitionWordCount);
+                LOG.info("filesProcessed " + filesProcessed + "/" + totalFileCount + " docID "
+                        + docID);
+
+                if (partitionDocCount >= 5000 || partitionWordCount >= 10000000) { // FIXME
+                    partitionID++;
+                    try {
+                        saveIndexPartition(partitionID, docIdToUrl, wordToDocuments);
+                    } catch (IOException e) {
+                        error = e;
+                        throw new ChmStopEnumeration();
+                    }
+                    wordToDocuments = new LinkedHashMap<String, DocumentsForWord>();
+                    docIdToUrl = new LinkedHashMap<Integer, String>();
+                    partitionDocCount = 0;
+                    partitionWordCount = 0;
+                }
+            }
+
+            String content = decodeContent(buf);
+            if (content == null || content.length() == 0) {
+                return;
+            }
+
+            List<String> words = parse(content);
+            if (words.size() == 0) {
+                return;
+            }
+            partitionWordCount += words.size();
+
+            partitionDocCount++;
+            docID++;
+            docIdToUrl.put(docID, ui.getPath());
+
+            HashMap<String, LocationsInDocument> wordToLocations = new HashMap<String, LocationsInDocument>();
+            int wordLocation = -1;
+            for (String word : words) {
+                wordLocation++;
+
+                if (word.length() > 16 || stopWords.contains(word)) {
+                    continue;
+                }
+
+                LocationsInDocument locationsInDocument;
+                if (wordToLocations.containsKey(word)) {
+                    locationsInDocument = wordToLocations.get(word);
+                } else {
+                    locationsInDocument = new LocationsInDocument(docID, ui.getPath());
+                    wordToLocations.put(word, locationsInDocument);
+                }
+                if (!highFreqWords.contains(word)) {
+                    locationsInDocument.locations.add(wordLocation);
+                }
+                locationsInDocument.totalFrequency += 1;
+            }
+
+            for (Entry<String, LocationsInDocument> entry : wordToLocations.entrySet()) {
+                String word = entry.getKey();
+                LocationsInDocument locationsInDocument = entry.getValue();
+
+                if (locationsInDocument.locations.size() > 500) {
+                    locationsInDocument.locations.clear();
+                }
+
+                DocumentsForWord documentsForWord;
+                if (wordToDocuments.containsKey(word)) {
+                    documentsForWord = wordToDocuments.get(word);
+
+                } else {
+                    documentsForWord = new DocumentsForWord();
+                    wordToDocuments.put(word, documentsForWord);
+                }
+                documentsForWord.documents.add(locationsInDocument);
+
+                // ignore locations of high frequency word
+                int wordDocCount = documentsForWord.documents.size();
+                if (wordDocCount > 1000 && wordDocCount >= partitionDocCount * 0.95) {
+                    // LOG.fine(String.format("high frequency word %s, %d/%d",
+                    // word, wordDocCount, partitionDocCount));
+                    for (LocationsInDocument lid : documentsForWord.documents) {
+                        lid.locations.clear();
+                    }
+                    highFreqWords.add(word);
+                }
+            }
+        }
+    }
+
     class LocationsInDocument {
 
         final int docID;
@@ -0,0 +1,63 @@
+package org.jchmlib.app;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.jchmlib.ChmFile;
+import org.jchmlib.ChmFileOptions;
+
+/**
+ * Decompresses all reset intervals of a CHM file with both the original and
+ * the fast LZX decoder, checks that they produce the same bytes,
+ * and reports the speed of each.
+ */
+@SuppressWarnings("WeakerAccess")
+public class ChmLzxCheck {
+
+    public static void main(String[] argv) throws IOException {
+        if (argv.length < 1) {
+            System.out.println("Usage: ChmLzxCheck <chmfile> [rounds]");
+            return;
+        }
+        int rounds = argv.length > 1 ? Integer.parseInt(argv[1]) : 3;
+
+        ChmFile original = new ChmFile(argv[0],
+                new ChmFileOptions().setFastLzxDecoding(false));
+        ChmFile fast = new ChmFile(argv[0],
+                new ChmFileOptions().setFastLzxDecoding(true));
+
+        int count = original.getResetIntervalCount();
+        int mismatches = 0;
+        long bytes = 0;
+        for (int i = 0; i < count; i++) {
+            ByteBuffer expected = original.decompressResetInterval(i);
+            ByteBuffer actual = fast.decompressResetInterval(i);
+            if (expected == null ? actual != null : !expected.equals(actual)) {
+                System.out.println("    reset interval " + i + " differs");
+                mismatches++;
+            }
+            if (expected != null) {
+                bytes += expected.remaining();
+            }
+        }
+        System.out.println(count + " reset intervals, " + bytes + " bytes, "
+                + mismatches + " mismatches");
+
+        for (int round = 0; round < rounds; round++) {
+            System.out.println(String.format("    original: %.1f MB/s, fast: %.1f MB/s",
+                    measure(original, bytes), measure(fast, bytes)));
+        }
+
+        original.close();
+        fast.close();
+    }
+
+    private static double measure(ChmFile chmFile, long bytes) {
+        int count = chmFile.getResetIntervalCount();
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            chmFile.decompressResetInterval(i);
+        }
+        long elapsed = Math.max(System.nanoTime() - start, 1);
+        return bytes / 1048576.0 * 1e9 / elapsed;
+    }
+}
@@ -3,6 +3,7 @@ package org.jchmlib.app;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
+import org.jchmlib.ChmCollectFilesEnumerator;
 import org.jchmlib.ChmFile;
 import org.jchmlib.ChmSearchEnumerator;
 
@@ -17,8 +18,11 @@ public class ChmSlowSearch {
 
         ChmFile chmFile = new ChmFile(argv[0]);
 
+        ChmCollectFilesEnumerator files = new ChmCollectFilesEnumerator();
+        chmFile.enumerate(ChmFile.CHM_ENUMERATE_USER | ChmFile.CHM_ENUMERATE_STORAGE_ORDER,
+                files);
         ChmSearchEnumerator enumerator = new ChmSearchEnumerator(chmFile, argv[1], 0);
-        chmFile.enumerate(ChmFile.CHM_ENUMERATE_USER, enumerator);
+        chmFile.retrieveObjects(files.files, enumerator);
         HashMap<String, String> results = enumerator.getResults();
         if (results.size() == 0) {
             System.out.println("No match.");
@@ -13,15 +13,16 @@ import java.io.InputStreamReader;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.logging.Logger;
 import org.jchmlib.ChmCollectFilesEnumerator;
 import org.jchmlib.ChmFile;
+import org.jchmlib.ChmFileOptions;
 import org.jchmlib.ChmIndexSearcher;
 import org.jchmlib.ChmSearchEnumerator;
+import org.jchmlib.ChmSharedBlockCache;
 import org.jchmlib.ChmTopicsTree;
 import org.jchmlib.ChmUnitInfo;
 import org.jchmlib.app.net.HttpRequest;
@@ -35,6 +36,7 @@ import org.jchmlib.app.net.HttpResponse;
 public class ChmWeb extends Thread {
 
     private static final Logger LOG = Logger.getLogger(ChmWeb.class.getName());
+    private static ChmSharedBlockCache sharedBlockCache = null;
     final boolean isRunningFromJar;
     ChmFile chmFile;
     String encoding = "UTF8";
@@ -73,7 +75,19 @@ public class ChmWeb extends Thread {
 
         try {
             chmFilePath = chmFileName;
-            chmFile = new ChmFile(chmFileName);
+            ChmFileOptions options = new ChmFileOptions();
+            // sidecars make restarting the server with large CHM files faster
+            String sidecarPath = System.getProperty("org.jchmlib.app.ChmWeb.sidecar");
+            if (sidecarPath != null && sidecarPath.length() > 0) {
+                options.setSidecarDirectory(new File(sidecarPath));
+            }
+            // for CHM files served all the time, decompress them once for all
+            String contentCachePath = System.getProperty("org.jchmlib.app.ChmWeb.contentCache");
+            if (contentCachePath != null && contentCachePath.length() > 0) {
+                options.setContentCacheDirectory(new File(contentCachePath));
+            }
+            options.setSharedBlockCache(getSharedBlockCache());
+            chmFile = new ChmFile(chmFileName, options);
             encoding = fixEncoding(chmFile.getEncoding());
         } catch (Exception e) {
             System.err.println("Failed to open this CHM file.");
@@ -96,6 +110,29 @@ public class ChmWeb extends Thread {
         return true;
     }
 
+    /**
+     * When serving many CHM files in one process, keep their decompressed blocks
+     * within one memory limit, given in megabytes.
+     */
+    private static synchronized ChmSharedBlockCache getSharedBlockCache() {
+        if (sharedBlockCache == null) {
+            String size = System.getProperty("org.jchmlib.app.ChmWeb.sharedBlockCache");
+            if (size == null || size.length() == 0) {
+                return null;
+            }
+            try {
+                boolean offHeap = Boolean.getBoolean(
+                        "org.jchmlib.app.ChmWeb.sharedBlockCacheOffHeap");
+                sharedBlockCache = new ChmSharedBlockCache(
+                        Long.parseLong(size) * 1024 * 1024, offHeap);
+            } catch (NumberFormatException e) {
+                LOG.info("Invalid size of shared block cache: " + size);
+                return null;
+            }
+        }
+        return sharedBlockCache;
+    }
+
     private ServerSocket tryCreateSocket(int defaultPort) {
         if (defaultPort > 0) {
             try {
@@ -446,8 +483,25 @@ class ClientHandler extends Thread {
                         "</body>");
             }
         } else {
-            ByteBuffer buffer = chmFile.retrieveObject(ui);
-            response.write(buffer, (int) ui.getLength());
+            InputStream in = chmFile.openStream(ui);
+            try {
+                sendStream(in);
+            } catch (IOException e) {
+                LOG.fine("Failed to deliver " + requestedFile + ": " + e);
+            } finally {
+                try {
+                    in.close();
+                } catch (Throwable ignore) {
+                }
+            }
+        }
+    }
+
+    private void sendStream(InputStream in) throws IOException {
+        byte[] buffer = new byte[8192];
+        int size;
+        while ((size = in.read(buffer)) != -1) {
+            response.write(buffer, 0, size);
         }
     }
 
@@ -699,8 +753,11 @@ class ClientHandler extends Thread {
         }
 
         try {
+            ChmCollectFilesEnumerator files = new ChmCollectFilesEnumerator();
+            chmFile.enumerate(ChmFile.CHM_ENUMERATE_USER | ChmFile.CHM_ENUMERATE_STORAGE_ORDER,
+                    files);
             ChmSearchEnumerator enumerator = new ChmSearchEnumerator(chmFile, query, maxResults);
-            chmFile.enumerate(ChmFile.CHM_ENUMERATE_USER, enumerator);
+            chmFile.retrieveObjects(files.files, enumerator);
             HashMap<String, String> results = enumerator.getResults();
             deliverSearchResults(results);
         } catch (Exception e) {
@@ -739,12 +796,7 @@ class ClientHandler extends Thread {
         }
 
         response.sendHeader(request.getContentType(requestedFile));
-
-        byte[] buffer = new byte[1024];
-        int size;
-        while ((size = in.read(buffer)) != -1) {
-            response.write(buffer, 0, size);
-        }
+        sendStream(in);
 
         try {
             in.close();
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2017 chimenchen. All rights reserved.
+ */
+
+package org.jchmlib;
+
+import java.nio.ByteBuffer;
+
+/**
+ * AbstractBlockCache is a memory-bounded cache of the decompressed LZX blocks
+ * of a CHM file, keyed by block index.
+ * <p>
+ * Cached buffers are shared, so callers should never modify their content.
+ * {@link #get(int)} returns a duplicate, whose position and limit can be
+ * changed freely.
+ *
+ * @see ChmBlockCache
+ * @see ChmSharedBlockCache
+ */
+public abstract class AbstractBlockCache {
+
+    /**
+     * @param block index of the block.
+     * @return a duplicate of the cached block, or null if the block is not cached.
+     */
+    public abstract ByteBuffer get(int block);
+
+    /**
+     * Same as {@link #get(int)}, but returns the cached buffer itself, which
+     * may be used by other threads at the same time, so it should only be
+     * read with absolute gets.
+     */
+    abstract ByteBuffer getShared(int block);
+
+    /**
+     * Same as {@link #get(int)}, but it doesn't count as a read of the block.
+     */
+    abstract ByteBuffer peek(int block);
+
+    /**
+     * Adds a decompressed block to the cache, evicting other blocks if the
+     * cache grows larger than its limit.
+     *
+     * @param block index of the block.
+     * @param buf the decompressed block. It should not be modified afterwards.
+     */
+    public abstract void put(int block, ByteBuffer buf);
+
+    /**
+     * Same as {@link #put(int, ByteBuffer)}, for a block decompressed because
+     * it was read and not found in the cache, so the read counts as its first one.
+     */
+    void putRead(int block, ByteBuffer buf) {
+        put(block, buf);
+    }
+
+    /**
+     * @param block index of the block.
+     * @return true if the block is cached. Counters are not updated.
+     */
+    public abstract boolean contains(int block);
+
+    public abstract void clear();
+
+    public abstract long getMaxBytes();
+
+    /**
+     * Changes the memory limit of this cache.
+     *
+     * @param maxBytes the maximum number of bytes of decompressed data to keep. 0 disables
+     * caching.
+     */
+    public abstract void setMaxBytes(long maxBytes);
+
+    public abstract long getUsedBytes();
+
+    public abstract int getBlockCount();
+
+    public abstract long getHitCount();
+
+    public abstract long getMissCount();
+
+    public abstract long getEvictionCount();
+}
@@ -16,6 +16,28 @@ import java.util.logging.Logger;
 class ByteBufferHelper {
 
     private static final Logger LOG = Logger.getLogger(ByteBufferHelper.class.getName());
+    /**
+     * Copies of up to this many bytes are done byte by byte.
+     */
+    private static final int SMALL_COPY_LEN = 64;
+
+    /**
+     * Copies bytes at an index of a buffer, which may be shared, to dst.
+     * Neither the position nor the limit of src is used or changed, and
+     * small copies don't create buffers.
+     */
+    static void copy(ByteBuffer src, int index, ByteBuffer dst, int len) {
+        if (len <= SMALL_COPY_LEN) {
+            for (int i = 0; i < len; i++) {
+                dst.put(src.get(index + i));
+            }
+            return;
+        }
+        ByteBuffer buf = src.duplicate();
+        buf.limit(index + len);
+        buf.position(index);
+        dst.put(buf);
+    }
 
     public static void skip(ByteBuffer bb, int count) throws IOException {
         try {
@@ -85,7 +107,7 @@ class ByteBufferHelper {
         byte[] bytes;
         if (buf.hasArray()) {
             bytes = buf.array();
-            return bytesToString(bytes, buf.position(), buf.remaining(),
+            return bytesToString(bytes, buf.arrayOffset() + buf.position(), buf.remaining(),
                     encoding);
         } else {
             // Remember the original position of the buffer
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2017 chimenchen. All rights reserved.
+ */
+
+package org.jchmlib;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * ChmBlockCache is a memory-bounded LRU cache of decompressed LZX blocks,
+ * keyed by block index.
+ */
+public class ChmBlockCache extends AbstractBlockCache {
+
+    private final LinkedHashMap<Integer, ByteBuffer> blocks;
+    private long maxBytes;
+    private long usedBytes;
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+
+    /**
+     * Creates a new ChmBlockCache.
+     *
+     * @param maxBytes the maximum number of bytes of decompressed data to keep. 0 disables
+     * caching.
+     */
+    public ChmBlockCache(long maxBytes) {
+        // access order, so that the eldest entry is the least recently used one.
+        blocks = new LinkedHashMap<Integer, ByteBuffer>(16, 0.75f, true);
+        this.maxBytes = Math.max(maxBytes, 0);
+    }
+
+    @Override
+    public synchronized ByteBuffer get(int block) {
+        ByteBuffer buf = blocks.get(block);
+        if (buf == null) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        return buf.duplicate();
+    }
+
+    @Override
+    synchronized ByteBuffer getShared(int block) {
+        ByteBuffer buf = blocks.get(block);
+        if (buf == null) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        return buf;
+    }
+
+    /**
+     * Same as {@link #get(int)}, but hit/miss counters are not updated.
+     */
+    @Override
+    synchronized ByteBuffer peek(int block) {
+        ByteBuffer buf = blocks.get(block);
+        return buf == null ? null : buf.duplicate();
+    }
+
+    /**
+     * Adds a decompressed block to the cache, evicting the least recently used
+     * blocks if the cache grows larger than its limit.
+     */
+    @Override
+    public synchronized void put(int block, ByteBuffer buf) {
+        if (buf == null || buf.capacity() > maxBytes) {
+            return;
+        }
+
+        ByteBuffer old = blocks.put(block, buf);
+        if (old != null) {
+            usedBytes -= old.capacity();
+        }
+        usedBytes += buf.capacity();
+        evict();
+    }
+
+    @Override
+    public synchronized boolean contains(int block) {
+        return blocks.containsKey(block);
+    }
+
+    @Override
+    public synchronized void clear() {
+        blocks.clear();
+        usedBytes = 0;
+    }
+
+    @Override
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    @Override
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = Math.max(maxBytes, 0);
+        evict();
+    }
+
+    @Override
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    @Override
+    public synchronized int getBlockCount() {
+        return blocks.size();
+    }
+
+    @Override
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    @Override
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    @Override
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    public synchronized String toString() {
+        return String.format("ChmBlockCache[blocks=%d, used=%d, max=%d, hits=%d, misses=%d, "
+                        + "evictions=%d]", blocks.size(), usedBytes, maxBytes,
+                hitCount, missCount, evictionCount);
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<Integer, ByteBuffer>> it = blocks.entrySet().iterator();
+        while (usedBytes > maxBytes && it.hasNext()) {
+            ByteBuffer buf = it.next().getValue();
+            it.remove();
+            usedBytes -= buf.capacity();
+            evictionCount++;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2017 chimenchen. All rights reserved.
+ */
+
+package org.jchmlib;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A CHM file already in memory, in a buffer owned by the caller, e.g. read
+ * from a zip file or mapped by the caller. It is served as read-only slices
+ * of the buffer, without copying it.
+ */
+class ChmBufferStorage extends ChmStorage {
+
+    private final ByteBuffer buffer;
+
+    /**
+     * @param buffer the CHM file, from its position to its limit.
+     */
+    ChmBufferStorage(ByteBuffer buffer) {
+        this.buffer = buffer.slice();
+    }
+
+    @Override
+    long size() {
+        return buffer.capacity();
+    }
+
+    @Override
+    ByteBuffer fetch(long offset, int len) throws IOException {
+        checkRange(offset, len);
+
+        ByteBuffer buf = buffer.duplicate();
+        buf.position((int) offset);
+        buf.limit((int) offset + len);
+        // read-only, so that the buffer of the caller can't be changed through it
+        buf = buf.slice().asReadOnlyBuffer();
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        return buf;
+    }
+
+    @Override
+    byte get(long offset) throws IOException {
+        checkRange(offset, 1);
+        return buffer.get((int) offset);
+    }
+
+    @Override
+    void read(long offset, ByteBuffer dst, int len) throws IOException {
+        checkRange(offset, len);
+        ByteBufferHelper.copy(buffer, (int) offset, dst, len);
+    }
+
+    public void close() {
+        // the buffer belongs to the caller
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2017 chimenchen. All rights reserved.
+ */
+
+package org.jchmlib;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * A CHM file read with positional reads (pread), for file systems where
+ * memory mapping is undesirable.
+ * <p>
+ * Channels other than {@link FileChannel} have no positional reads, so reads
+ * from them are serialized, each moving the position of the channel first.
+ */
+class ChmChannelStorage extends ChmStorage {
+
+    private final SeekableByteChannel channel;
+    private final FileChannel fileChannel;
+    private final long size;
+
+    ChmChannelStorage(SeekableByteChannel channel) throws IOException {
+        this.channel = channel;
+        fileChannel = channel instanceof FileChannel ? (FileChannel) channel : null;
+        size = channel.size();
+    }
+
+    @Override
+    long size() {
+        return size;
+    }
+
+    @Override
+    ByteBuffer fetch(long offset, int len) throws IOException {
+        checkRange(offset, len);
+
+        ByteBuffer buf = ByteBuffer.allocate(len);
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        if (fileChannel != null) {
+            while (buf.hasRemaining()) {
+                // positional reads don't change the position of the channel,
+                // and may run concurrently.
+                if (fileChannel.read(buf, offset + buf.position()) < 0) {
+                    throw new EOFException();
+                }
+            }
+        } else {
+            synchronized (channel) {
+                channel.position(offset);
+                while (buf.hasRemaining()) {
+                    if (channel.read(buf) < 0) {
+                        throw new EOFException();
+                    }
+                }
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+}
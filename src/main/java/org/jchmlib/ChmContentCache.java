@@ -0,0 +1,423 @@
+/*
+ * Copyright 2017 chimenchen. All rights reserved.
+ */
+
+package org.jchmlib;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+
+/**
+ * ChmContentCache keeps the compressed content section of a CHM file,
+ * fully decompressed, in a file under a cache directory, so that compressed
+ * objects can be read from it without decompressing them.
+ * <p>
+ * The file is built in the background, one CHM file at a time, and only
+ * used if the size, the modification time and the header checksum of the
+ * CHM file are the same as when it was built. Files in the cache directory
+ * are evicted, least recently opened first, to keep their total size within
+ * a budget. Files being built or open are shared by all instances for the
+ * same CHM file: they are built once, opened by all of them when done,
+ * and not evicted while open.
+ */
+class ChmContentCache {
+
+    private final static Logger LOG = Logger.getLogger(ChmContentCache.class.getName());
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+    private final static long MAGIC = 0x313043434d48434aL; // "JCHMCC01"
+    private final static String SUFFIX = ".content";
+    /**
+     * The decompressed content starts at this offset, aligned to pages.
+     */
+    private final static int HEADER_LEN = 4096;
+
+    private static ExecutorService executor;
+    /**
+     * Cache files with a build queued or running, and the instances to open them once built.
+     */
+    private final static Map<File, List<ChmContentCache>> building =
+            new HashMap<File, List<ChmContentCache>>();
+    /**
+     * Cache files opened, and how many times.
+     */
+    private final static Map<File, Integer> openFiles = new HashMap<File, Integer>();
+
+    private final File dir;
+    private final File file;
+    private final String path;
+    private final long fileSize;
+    private final long lastModified;
+    private final long headerChecksum;
+    private final int blockLen;
+    private final long contentLength;
+    private final long budget;
+
+    private volatile ChmStorage storage = null;
+    private volatile boolean closed = false;
+
+    /**
+     * @param dir the cache directory.
+     * @param chmFile the CHM file.
+     * @param fileSize size of the CHM file.
+     * @param headerChecksum see {@link ChmSidecar#getHeaderChecksum}.
+     * @param blockLen length of decompressed blocks.
+     * @param contentLength length of the decompressed content section.
+     * @param budget maximum total size of files in the cache directory.
+     */
+    ChmContentCache(File dir, File chmFile, long fileSize, long headerChecksum,
+            int blockLen, long contentLength, long budget) {
+        this.dir = dir;
+        this.file = ChmSidecar.getFile(dir, chmFile, SUFFIX).getAbsoluteFile();
+        this.path = chmFile.getAbsolutePath();
+        this.fileSize = fileSize;
+        this.lastModified = chmFile.lastModified();
+        this.headerChecksum = headerChecksum;
+        this.blockLen = blockLen;
+        this.contentLength = contentLength;
+        this.budget = budget;
+    }
+
+    /**
+     * @return the decompressed content section, at the offsets of
+     * {@link ChmUnitInfo#getStart()}, or null if it is not available yet.
+     */
+    ChmStorage getStorage() {
+        return storage;
+    }
+
+    /**
+     * Uses the cached content if it is valid, or builds it in the background.
+     * If another instance is building it already, it is used once built.
+     */
+    void open(final ChmFile chmFile) {
+        if (openExisting()) {
+            // other files may have been added since the last eviction
+            getExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    evict(dir, budget);
+                }
+            });
+            return;
+        }
+        if (HEADER_LEN + contentLength > budget) {
+            LOG.info("Content of " + path + " exceeds the budget of the content cache");
+            return;
+        }
+        synchronized (building) {
+            List<ChmContentCache> waiting = building.get(file);
+            if (waiting != null) {
+                LOG.fine("Content cache is already being built: " + file);
+                waiting.add(this);
+                return;
+            }
+            waiting = new ArrayList<ChmContentCache>();
+            waiting.add(this);
+            building.put(file, waiting);
+        }
+        getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean built = false;
+                List<ChmContentCache> waiting;
+                try {
+                    built = !closed && build(chmFile);
+                } finally {
+                    synchronized (building) {
+                        waiting = building.remove(file);
+                    }
+                }
+                if (built) {
+                    evict(dir, budget);
+                    for (ChmContentCache cache : waiting) {
+                        cache.openExisting();
+                    }
+                }
+            }
+        });
+    }
+
+    synchronized void close() {
+        closed = true;
+        ChmStorage s = storage;
+        storage = null;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException ignored) {
+            }
+            release(file);
+        }
+    }
+
+    private boolean openExisting() {
+        if (!file.isFile() || file.length() != HEADER_LEN + contentLength) {
+            return false;
+        }
+        // keep it from being evicted while it is checked
+        acquire(file);
+        boolean opened = false;
+        RandomAccessFile rf = null;
+        try {
+            rf = new RandomAccessFile(file, "r");
+            byte[] bytes = new byte[HEADER_LEN];
+            rf.readFully(bytes);
+            if (!Arrays.equals(bytes, getHeader())) {
+                LOG.info("Content cache is out of date: " + file);
+                rf.close();
+                return false;
+            }
+            ChmStorage s = ChmFile.openStorage(rf.getChannel(), new ChmFileOptions());
+            rf = null;
+            synchronized (this) {
+                if (closed) {
+                    s.close();
+                    return false;
+                }
+                storage = new OffsetStorage(s, HEADER_LEN);
+                opened = true;
+            }
+            // for eviction, least recently opened first
+            //noinspection ResultOfMethodCallIgnored
+            file.setLastModified(System.currentTimeMillis());
+            LOG.fine("Opened content cache " + file);
+            return true;
+        } catch (IOException e) {
+            LOG.info("Failed to open content cache " + file + ": " + e);
+            if (rf != null) {
+                try {
+                    rf.close();
+                } catch (IOException ignored) {
+                }
+            }
+            return false;
+        } finally {
+            if (!opened) {
+                release(file);
+            }
+        }
+    }
+
+    private static void acquire(File file) {
+        synchronized (openFiles) {
+            Integer count = openFiles.get(file);
+            openFiles.put(file, count == null ? 1 : count + 1);
+        }
+    }
+
+    private static void release(File file) {
+        synchronized (openFiles) {
+            Integer count = openFiles.get(file);
+            if (count == null || count <= 1) {
+                openFiles.remove(file);
+            } else {
+                openFiles.put(file, count - 1);
+            }
+        }
+    }
+
+    private static boolean isOpen(File file) {
+        synchronized (openFiles) {
+            return openFiles.containsKey(file);
+        }
+    }
+
+    /**
+     * Decompresses the content section into a temporary file,
+     * which replaces the cache file once complete.
+     */
+    private boolean build(ChmFile chmFile) {
+        File tmp = null;
+        RandomAccessFile out = null;
+        try {
+            //noinspection ResultOfMethodCallIgnored
+            dir.mkdirs();
+            tmp = File.createTempFile(file.getName(), ".tmp", dir);
+            out = new RandomAccessFile(tmp, "rw");
+            FileChannel channel = out.getChannel();
+            write(channel, ByteBuffer.wrap(getHeader()));
+
+            long written = 0;
+            int count = chmFile.getResetIntervalCount();
+            for (int i = 0; i < count; i++) {
+                if (closed) {
+                    return false;
+                }
+                ByteBuffer buf = chmFile.decompressResetInterval(i);
+                if (buf == null) {
+                    throw new IOException("Failed to decompress reset interval " + i);
+                }
+                written += buf.remaining();
+                write(channel, buf);
+            }
+            if (written != contentLength) {
+                throw new IOException("Unexpected content length " + written);
+            }
+            out.close();
+            out = null;
+
+            if (!tmp.renameTo(file)) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+                if (!tmp.renameTo(file)) {
+                    throw new IOException("Failed to rename " + tmp);
+                }
+            }
+            tmp = null;
+            LOG.info("Built content cache " + file);
+            return true;
+        } catch (IOException e) {
+            LOG.info("Failed to build content cache " + file + ": " + e);
+            return false;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+            if (tmp != null) {
+                //noinspection ResultOfMethodCallIgnored
+                tmp.delete();
+            }
+        }
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    /**
+     * @return the header of the cache file, which must match exactly.
+     */
+    private byte[] getHeader() {
+        ByteBuffer bb = ByteBuffer.allocate(HEADER_LEN);
+        bb.order(ByteOrder.LITTLE_ENDIAN);
+        byte[] pathBytes = path.getBytes(UTF8);
+        bb.putLong(MAGIC);
+        bb.putLong(fileSize);
+        bb.putLong(lastModified);
+        bb.putLong(headerChecksum);
+        bb.putInt(blockLen);
+        bb.putLong(contentLength);
+        // paths too long for the header are cut, the file name has a hash of them anyway.
+        int pathLen = Math.min(pathBytes.length, bb.remaining() - 4);
+        bb.putInt(pathLen);
+        bb.put(pathBytes, 0, pathLen);
+        return bb.array();
+    }
+
+    /**
+     * Deletes least recently opened cache files until they fit in the budget.
+     * Files that are open are kept.
+     */
+    private static void evict(File dir, long budget) {
+        File[] files = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File f) {
+                return f.isFile() && f.getName().endsWith(SUFFIX);
+            }
+        });
+        if (files == null) {
+            return;
+        }
+
+        long total = 0;
+        for (int i = 0; i < files.length; i++) {
+            total += files[i].length();
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                long t1 = f1.lastModified();
+                long t2 = f2.lastModified();
+                return t1 < t2 ? -1 : (t1 == t2 ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < files.length && total > budget; i++) {
+            if (isOpen(files[i].getAbsoluteFile())) {
+                continue;
+            }
+            long length = files[i].length();
+            if (files[i].delete()) {
+                LOG.info("Evicted content cache " + files[i]);
+                total -= length;
+            }
+        }
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "jchmlib-content-cache");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * A storage holding another one, from an offset.
+     */
+    private static class OffsetStorage extends ChmStorage {
+
+        private final ChmStorage storage;
+        private final long offset;
+
+        OffsetStorage(ChmStorage storage, long offset) {
+            this.storage = storage;
+            this.offset = offset;
+        }
+
+        @Override
+        long size() {
+            return storage.size() - offset;
+        }
+
+        @Override
+        ByteBuffer fetch(long offset, int len) throws IOException {
+            checkRange(offset, len);
+            return storage.fetch(this.offset + offset, len);
+        }
+
+        @Override
+        byte get(long offset) throws IOException {
+            checkRange(offset, 1);
+            return storage.get(this.offset + offset);
+        }
+
+        @Override
+        void read(long offset, ByteBuffer dst, int len) throws IOException {
+            checkRange(offset, len);
+            storage.read(this.offset + offset, dst, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            storage.close();
+        }
+    }
+}
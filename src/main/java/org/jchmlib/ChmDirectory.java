@@ -0,0 +1,744 @@
+/*
+ * Copyright 2017 chimenchen. All rights reserved.
+ */
+
+package org.jchmlib;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * ChmDirectory is a compact directory of the objects in a CHM file.
+ * <p>
+ * Paths are kept in a single byte array, encoded in UTF-8 as they are in
+ * the CHM file, and the other fields of entries in parallel primitive arrays.
+ * An open-addressing hash table maps paths to entries case-insensitively.
+ * {@link ChmUnitInfo} objects are only created when entries are returned
+ * to callers.
+ * <p>
+ * Entries keep the order they are added in, and adding a path already in the
+ * directory replaces the existing entry, with the path as it is added.
+ * <p>
+ * Paths are compared as they are decoded by {@link String}, so paths that are
+ * not well-formed UTF-8 are decoded to strings to be hashed or compared.
+ */
+class ChmDirectory {
+
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+    private final static int NOT_FOUND = -1;
+
+    private byte[] bytes = new byte[4096];
+    private int byteCount = 0;
+    /**
+     * Entry i has the path bytes[pathOffsets[i], pathOffsets[i + 1]).
+     */
+    private int[] pathOffsets = new int[257];
+    private long[] starts = new long[256];
+    private long[] lengths = new long[256];
+    private byte[] spaces = new byte[256];
+    private byte[] flags = new byte[256];
+    private int size = 0;
+    /**
+     * Hashes of paths while entries are being added, null once trimmed to size.
+     */
+    private int[] hashes = new int[256];
+    /**
+     * Open-addressing hash table, holding entry index + 1, or 0 for free slots.
+     */
+    private int[] table = new int[512];
+    /**
+     * The last .hhc file, known as "/@contents".
+     */
+    private int contentsEntry = NOT_FOUND;
+    /**
+     * The first .hhc file, which "/@contents" follows when the directory is enumerated.
+     */
+    private int contentsPosition = NOT_FOUND;
+    /**
+     * Entry indices sorted by content section and start, computed on demand.
+     */
+    private volatile int[] storageOrder = null;
+
+    /**
+     * Parses a PMGL entry and adds it to the directory.
+     */
+    void add(ByteBuffer bb) throws IOException {
+        parse(bb);
+        commit();
+    }
+
+    /**
+     * Parses a PMGL entry and appends it to the directory, without looking for
+     * duplicates or indexing it. Used to parse parts of the directory separately,
+     * to be merged in order with {@link #addAll(ChmDirectory)}.
+     */
+    void append(ByteBuffer bb) throws IOException {
+        parse(bb);
+        byteCount = pathOffsets[size + 1];
+        size++;
+    }
+
+    /**
+     * Adds the entries of a directory built with {@link #append(ByteBuffer)},
+     * as if its PMGL entries were added one by one.
+     */
+    void addAll(ChmDirectory other) {
+        for (int i = 0; i < other.size; i++) {
+            int offset = other.pathOffsets[i];
+            int len = other.pathOffsets[i + 1] - offset;
+            ensureByteCapacity(byteCount + len);
+            ensureEntryCapacity(size + 1);
+            System.arraycopy(other.bytes, offset, bytes, byteCount, len);
+            pathOffsets[size] = byteCount;
+            pathOffsets[size + 1] = byteCount + len;
+            starts[size] = other.starts[i];
+            lengths[size] = other.lengths[i];
+            spaces[size] = other.spaces[i];
+            flags[size] = other.flags[i];
+            hashes[size] = other.hashes[i];
+            commit();
+        }
+    }
+
+    /**
+     * Parses a PMGL entry into the free entry at size, without adding it.
+     */
+    private void parse(ByteBuffer bb) throws IOException {
+        long space, start, length;
+        int pathOffset = byteCount;
+        int pathEnd;
+        try {
+            int strLen = (int) ByteBufferHelper.parseCWord(bb);
+            strLen = Math.min(bb.remaining(), Math.max(strLen, 0));
+            ensureByteCapacity(byteCount + strLen);
+            bb.get(bytes, pathOffset, strLen);
+            // like ByteBufferHelper.parseString, the path ends at the first NUL
+            pathEnd = pathOffset;
+            while (pathEnd < pathOffset + strLen && bytes[pathEnd] != 0) {
+                pathEnd++;
+            }
+
+            space = ByteBufferHelper.parseCWord(bb);
+            start = ByteBufferHelper.parseCWord(bb);
+            length = ByteBufferHelper.parseCWord(bb);
+        } catch (Exception e) {
+            throw new IOException("Failed to parse CHM unit info", e);
+        }
+
+        ensureEntryCapacity(size + 1);
+        pathOffsets[size] = pathOffset;
+        pathOffsets[size + 1] = pathEnd;
+        starts[size] = start;
+        lengths[size] = length;
+        spaces[size] = (byte) space;
+        flags[size] = (byte) computeFlags(size);
+        hashes[size] = hash(bytes, pathOffset, pathEnd);
+    }
+
+    /**
+     * Adds the entry at size, or replaces the existing entry with the same path.
+     */
+    private void commit() {
+        int pathOffset = pathOffsets[size];
+        int pathEnd = pathOffsets[size + 1];
+        int index = findDuplicate(size);
+        if (index == NOT_FOUND) {
+            index = size++;
+            byteCount = pathEnd;
+            insert(index);
+        } else {
+            // keep the position of the first one, but its path may differ in case.
+            replacePath(index, pathOffset, pathEnd);
+            starts[index] = starts[size];
+            lengths[index] = lengths[size];
+            spaces[index] = spaces[size];
+            flags[index] = flags[size];
+        }
+
+        if (endsWithIgnoreCase(index, ".hhc")) {
+            contentsEntry = index;
+            if (contentsPosition == NOT_FOUND) {
+                contentsPosition = index;
+            }
+        }
+    }
+
+    /**
+     * Replaces the path of an entry with bytes[pathOffset, pathEnd), which
+     * follow the paths of all entries. If the length differs, the paths after
+     * the entry are moved.
+     */
+    private void replacePath(int index, int pathOffset, int pathEnd) {
+        int oldOffset = pathOffsets[index];
+        int oldEnd = pathOffsets[index + 1];
+        int len = pathEnd - pathOffset;
+        int delta = len - (oldEnd - oldOffset);
+        if (delta == 0) {
+            System.arraycopy(bytes, pathOffset, bytes, oldOffset, len);
+            return;
+        }
+
+        byte[] path = Arrays.copyOfRange(bytes, pathOffset, pathEnd);
+        ensureByteCapacity(byteCount + delta);
+        System.arraycopy(bytes, oldEnd, bytes, oldEnd + delta, byteCount - oldEnd);
+        System.arraycopy(path, 0, bytes, oldOffset, len);
+        for (int i = index + 1; i <= size; i++) {
+            pathOffsets[i] += delta;
+        }
+        byteCount += delta;
+    }
+
+    /**
+     * Releases memory reserved for entries to be added.
+     * No entries can be added afterwards.
+     */
+    void trimToSize() {
+        bytes = Arrays.copyOf(bytes, byteCount);
+        pathOffsets = Arrays.copyOf(pathOffsets, size + 1);
+        starts = Arrays.copyOf(starts, size);
+        lengths = Arrays.copyOf(lengths, size);
+        spaces = Arrays.copyOf(spaces, size);
+        flags = Arrays.copyOf(flags, size);
+        hashes = null;
+    }
+
+    /**
+     * @return an upper bound of the number of bytes written by {@link #writeTo(ByteBuffer)}.
+     */
+    int getSerializedSize() {
+        return 64 + byteCount + pathOffsets.length * 4 + size * 18 + table.length * 4;
+    }
+
+    /**
+     * Saves this directory, see {@link ChmSidecar}.
+     * It should have been trimmed to size.
+     */
+    void writeTo(ByteBuffer bb) {
+        bb.putInt(size);
+        bb.putInt(byteCount);
+        bb.putInt(table.length);
+        bb.putInt(contentsEntry);
+        ChmSidecar.putBytes(bb, bytes);
+        ChmSidecar.putInts(bb, pathOffsets);
+        ChmSidecar.putLongs(bb, starts);
+        ChmSidecar.putLongs(bb, lengths);
+        ChmSidecar.putBytes(bb, spaces);
+        ChmSidecar.putBytes(bb, flags);
+        ChmSidecar.putInts(bb, table);
+    }
+
+    /**
+     * Loads a directory saved by {@link #writeTo(ByteBuffer)}.
+     */
+    static ChmDirectory readFrom(ByteBuffer bb) throws IOException {
+        ChmDirectory dir = new ChmDirectory();
+        dir.size = bb.getInt();
+        dir.byteCount = bb.getInt();
+        int tableLength = bb.getInt();
+        dir.contentsEntry = bb.getInt();
+        if (dir.size < 0 || dir.byteCount < 0 || tableLength <= dir.size ||
+                Integer.bitCount(tableLength) != 1 || dir.contentsEntry >= dir.size) {
+            throw new IOException("Corrupted directory");
+        }
+        dir.bytes = ChmSidecar.getBytes(bb, dir.byteCount);
+        dir.pathOffsets = ChmSidecar.getInts(bb, dir.size + 1);
+        dir.starts = ChmSidecar.getLongs(bb, dir.size);
+        dir.lengths = ChmSidecar.getLongs(bb, dir.size);
+        dir.spaces = ChmSidecar.getBytes(bb, dir.size);
+        dir.flags = ChmSidecar.getBytes(bb, dir.size);
+        dir.table = ChmSidecar.getInts(bb, tableLength);
+        dir.hashes = null;
+        if (dir.pathOffsets[0] != 0 || dir.pathOffsets[dir.size] != dir.byteCount) {
+            throw new IOException("Corrupted directory");
+        }
+        for (int i = 0; i < dir.size && dir.contentsPosition == NOT_FOUND; i++) {
+            if (dir.endsWithIgnoreCase(i, ".hhc")) {
+                dir.contentsPosition = i;
+            }
+        }
+        return dir;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @param path path of the object, compared case-insensitively.
+     * @return index of the entry, or -1 if not found.
+     */
+    int indexOf(CharSequence path) {
+        int mask = table.length - 1;
+        for (int slot = hash(path) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+            int index = table[slot] - 1;
+            if (matches(index, path, true, false)) {
+                return index;
+            }
+        }
+        return NOT_FOUND;
+    }
+
+    /**
+     * @param path path of the object encoded in UTF-8, compared case-insensitively.
+     * @return index of the entry, or -1 if not found.
+     */
+    int indexOf(byte[] path, int offset, int length) {
+        int end = offset + length;
+        int mask = table.length - 1;
+        for (int slot = hash(path, offset, end) & mask; table[slot] != 0;
+                slot = (slot + 1) & mask) {
+            int index = table[slot] - 1;
+            if (matches(index, path, offset, end)) {
+                return index;
+            }
+        }
+        return NOT_FOUND;
+    }
+
+    /**
+     * @return a new ChmUnitInfo for the entry.
+     */
+    ChmUnitInfo get(int index) {
+        return new ChmUnitInfo(getPath(index), starts[index], lengths[index],
+                spaces[index], getFlags(index));
+    }
+
+    /**
+     * @return the last .hhc file, or null if there is none.
+     */
+    ChmUnitInfo getContents() {
+        return contentsEntry == NOT_FOUND ? null : get(contentsEntry);
+    }
+
+    /**
+     * @return index of the last .hhc file, or -1 if there is none.
+     */
+    int getContentsIndex() {
+        return contentsEntry;
+    }
+
+    /**
+     * @return index of the first .hhc file, or -1 if there is none.
+     * "/@contents" was added to the directory with it, and is enumerated after it.
+     */
+    int getContentsPosition() {
+        return contentsPosition;
+    }
+
+    String getPath(int index) {
+        int offset = pathOffsets[index];
+        return new String(bytes, offset, pathOffsets[index + 1] - offset, UTF8);
+    }
+
+    int getFlags(int index) {
+        return flags[index] & 0xff;
+    }
+
+    /**
+     * @return entry indices sorted by content section, then by start offset,
+     * i.e. in the order their content is stored. Entries at the same place,
+     * like empty files and directories, keep the order of the directory.
+     * Callers should not modify it.
+     */
+    int[] getStorageOrder() {
+        int[] order = storageOrder;
+        if (order == null) {
+            order = new int[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            sortByStorage(order.clone(), order, 0, size);
+            storageOrder = order;
+        }
+        return order;
+    }
+
+    /**
+     * Merge sort of dst[from, to), which is stable, with src holding the same indices.
+     */
+    private void sortByStorage(int[] src, int[] dst, int from, int to) {
+        if (to - from < 8) {
+            // insertion sort
+            for (int i = from + 1; i < to; i++) {
+                int index = dst[i];
+                int j = i;
+                while (j > from && storageCompare(dst[j - 1], index) > 0) {
+                    dst[j] = dst[j - 1];
+                    j--;
+                }
+                dst[j] = index;
+            }
+            return;
+        }
+
+        int mid = (from + to) >>> 1;
+        sortByStorage(dst, src, from, mid);
+        sortByStorage(dst, src, mid, to);
+        if (storageCompare(src[mid - 1], src[mid]) <= 0) {
+            System.arraycopy(src, from, dst, from, to - from);
+            return;
+        }
+        for (int i = from, p = from, q = mid; i < to; i++) {
+            if (q >= to || (p < mid && storageCompare(src[p], src[q]) <= 0)) {
+                dst[i] = src[p++];
+            } else {
+                dst[i] = src[q++];
+            }
+        }
+    }
+
+    private int storageCompare(int index1, int index2) {
+        if (spaces[index1] != spaces[index2]) {
+            return spaces[index1] < spaces[index2] ? -1 : 1;
+        }
+        long start1 = starts[index1];
+        long start2 = starts[index2];
+        return start1 < start2 ? -1 : (start1 == start2 ? 0 : 1);
+    }
+
+    /**
+     * @return true if the path of the entry starts with the prefix, case-sensitively.
+     */
+    boolean pathStartsWith(int index, CharSequence prefix) {
+        return matches(index, prefix, false, true);
+    }
+
+    /**
+     * Compares the path of an entry with a string, decoding it on the fly.
+     *
+     * @param prefix if true, also matches if the path starts with the string.
+     */
+    private boolean matches(int index, CharSequence s, boolean ignoreCase, boolean prefix) {
+        int pos = pathOffsets[index];
+        int end = pathOffsets[index + 1];
+        int n = s.length();
+        int i = 0;
+        while (pos < end && i < n) {
+            byte b = bytes[pos];
+            if (b >= 0) {
+                // ASCII
+                if (!sameChar((char) b, s.charAt(i++), ignoreCase)) {
+                    return false;
+                }
+                pos++;
+                continue;
+            }
+            int len = sequenceLength(bytes, pos, end);
+            if (len == 0) {
+                return matches(getPath(index), s, ignoreCase, prefix);
+            }
+            int cp = codePointAt(bytes, pos, len);
+            pos += len;
+            if (cp < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+                if (!sameChar((char) cp, s.charAt(i++), ignoreCase)) {
+                    return false;
+                }
+            } else {
+                if (s.charAt(i++) != highSurrogate(cp) ||
+                        i >= n || s.charAt(i++) != lowSurrogate(cp)) {
+                    return false;
+                }
+            }
+        }
+        return i == n && (prefix || pos == end);
+    }
+
+    /**
+     * Compares a decoded path with a string.
+     */
+    private static boolean matches(String path, CharSequence s, boolean ignoreCase,
+            boolean prefix) {
+        int n = s.length();
+        if (path.length() < n || (!prefix && path.length() != n)) {
+            return false;
+        }
+        for (int i = 0; i < n; i++) {
+            if (!sameChar(path.charAt(i), s.charAt(i), ignoreCase)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compares the path of an entry with a UTF-8 path case-insensitively.
+     */
+    private boolean matches(int index, byte[] s, int sPos, int sEnd) {
+        int sPos0 = sPos;
+        int pos = pathOffsets[index];
+        int end = pathOffsets[index + 1];
+        while (pos < end && sPos < sEnd) {
+            byte b1 = bytes[pos];
+            byte b2 = s[sPos];
+            if (b1 >= 0 && b2 >= 0) {
+                // ASCII
+                if (!sameChar((char) b1, (char) b2, true)) {
+                    return false;
+                }
+                pos++;
+                sPos++;
+                continue;
+            }
+            int len1 = sequenceLength(bytes, pos, end);
+            int len2 = sequenceLength(s, sPos, sEnd);
+            if (len1 == 0 || len2 == 0) {
+                return matches(getPath(index), new String(s, sPos0, sEnd - sPos0, UTF8),
+                        true, false);
+            }
+            int cp1 = codePointAt(bytes, pos, len1);
+            int cp2 = codePointAt(s, sPos, len2);
+            pos += len1;
+            sPos += len2;
+            if (cp1 != cp2 && (cp1 >= Character.MIN_SUPPLEMENTARY_CODE_POINT ||
+                    cp2 >= Character.MIN_SUPPLEMENTARY_CODE_POINT ||
+                    !sameChar((char) cp1, (char) cp2, true))) {
+                return false;
+            }
+        }
+        return pos == end && sPos == sEnd;
+    }
+
+    private boolean endsWithIgnoreCase(int index, String asciiSuffix) {
+        int end = pathOffsets[index + 1];
+        int length = asciiSuffix.length();
+        if (end - pathOffsets[index] < length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (!sameChar((char) bytes[end - length + i], asciiSuffix.charAt(i), true)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int findDuplicate(int newIndex) {
+        int newHash = hashes[newIndex];
+        int mask = table.length - 1;
+        for (int slot = newHash & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+            int index = table[slot] - 1;
+            if (hash(index) == newHash &&
+                    matches(index, bytes, pathOffsets[newIndex], pathOffsets[newIndex + 1])) {
+                return index;
+            }
+        }
+        return NOT_FOUND;
+    }
+
+    /**
+     * Same as {@link ChmUnitInfo#getFlags(CharSequence)}, without decoding the path,
+     * as it only looks at ASCII characters at both ends of the path.
+     */
+    private int computeFlags(int index) {
+        int pos = pathOffsets[index];
+        int end = pathOffsets[index + 1];
+        int flags = 0;
+        // check for DIRS vs. FILES
+        if (end > pos && bytes[end - 1] == '/') {
+            flags |= ChmFile.CHM_ENUMERATE_DIRS;
+        } else {
+            flags |= ChmFile.CHM_ENUMERATE_FILES;
+        }
+
+        // check for NORMAL vs. META
+        if (end > pos && bytes[pos] == '/') {
+            // check for NORMAL vs. SPECIAL
+            if (end > pos + 1 && (bytes[pos + 1] == '#' || bytes[pos + 1] == '$')) {
+                flags |= ChmFile.CHM_ENUMERATE_SPECIAL;
+            } else {
+                flags |= ChmFile.CHM_ENUMERATE_NORMAL;
+            }
+        } else {
+            flags |= ChmFile.CHM_ENUMERATE_META;
+        }
+
+        if (endsWith(index, ".hhc") || endsWith(index, ".hhk")) {
+            flags = ChmFile.CHM_ENUMERATE_META;
+        }
+        return flags;
+    }
+
+    private boolean endsWith(int index, String asciiSuffix) {
+        int end = pathOffsets[index + 1];
+        int length = asciiSuffix.length();
+        if (end - pathOffsets[index] < length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (bytes[end - length + i] != asciiSuffix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean sameChar(char c1, char c2, boolean ignoreCase) {
+        return c1 == c2 ||
+                (ignoreCase && Character.toLowerCase(c1) == Character.toLowerCase(c2));
+    }
+
+    /**
+     * @return the length of the UTF-8 sequence at pos, or 0 if it is malformed,
+     * e.g. overlong, a surrogate or beyond U+10FFFF.
+     */
+    private static int sequenceLength(byte[] bytes, int pos, int end) {
+        int lead = bytes[pos] & 0xff;
+        if (lead < 0x80) {
+            return 1;
+        }
+        int len;
+        // range of the second byte, which rules out overlong and invalid code points
+        int min = 0x80;
+        int max = 0xbf;
+        if (lead < 0xc2) {
+            return 0;
+        } else if (lead < 0xe0) {
+            len = 2;
+        } else if (lead < 0xf0) {
+            len = 3;
+            if (lead == 0xe0) {
+                min = 0xa0;
+            } else if (lead == 0xed) {
+                max = 0x9f;
+            }
+        } else if (lead < 0xf5) {
+            len = 4;
+            if (lead == 0xf0) {
+                min = 0x90;
+            } else if (lead == 0xf4) {
+                max = 0x8f;
+            }
+        } else {
+            return 0;
+        }
+        if (pos + len > end) {
+            return 0;
+        }
+        int second = bytes[pos + 1] & 0xff;
+        if (second < min || second > max) {
+            return 0;
+        }
+        for (int i = 2; i < len; i++) {
+            if ((bytes[pos + i] & 0xc0) != 0x80) {
+                return 0;
+            }
+        }
+        return len;
+    }
+
+    private static int codePointAt(byte[] bytes, int pos, int len) {
+        int lead = bytes[pos] & 0xff;
+        switch (len) {
+            case 2:
+                return ((lead & 0x1f) << 6) | (bytes[pos + 1] & 0x3f);
+            case 3:
+                return ((lead & 0x0f) << 12) | ((bytes[pos + 1] & 0x3f) << 6) |
+                        (bytes[pos + 2] & 0x3f);
+            case 4:
+                return ((lead & 0x07) << 18) | ((bytes[pos + 1] & 0x3f) << 12) |
+                        ((bytes[pos + 2] & 0x3f) << 6) | (bytes[pos + 3] & 0x3f);
+            default:
+                return lead;
+        }
+    }
+
+    private static char highSurrogate(int codePoint) {
+        return (char) ((codePoint >>> 10) +
+                (Character.MIN_HIGH_SURROGATE - (Character.MIN_SUPPLEMENTARY_CODE_POINT >>> 10)));
+    }
+
+    private static char lowSurrogate(int codePoint) {
+        return (char) ((codePoint & 0x3ff) + Character.MIN_LOW_SURROGATE);
+    }
+
+    private static int hash(CharSequence path) {
+        int h = 0;
+        for (int i = 0; i < path.length(); i++) {
+            h = 31 * h + Character.toLowerCase(path.charAt(i));
+        }
+        return mix(h);
+    }
+
+    /**
+     * @return the same hash as {@link #hash(CharSequence)} of the decoded path.
+     */
+    private int hash(int index) {
+        if (hashes != null) {
+            return hashes[index];
+        }
+        return hash(bytes, pathOffsets[index], pathOffsets[index + 1]);
+    }
+
+    /**
+     * @return the same hash as {@link #hash(CharSequence)} of the decoded path.
+     */
+    private static int hash(byte[] bytes, int pos, int end) {
+        int start = pos;
+        int h = 0;
+        while (pos < end) {
+            int len = sequenceLength(bytes, pos, end);
+            if (len == 0) {
+                return hash(new String(bytes, start, end - start, UTF8));
+            }
+            int cp = codePointAt(bytes, pos, len);
+            pos += len;
+            if (cp < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+                h = 31 * h + Character.toLowerCase((char) cp);
+            } else {
+                h = 31 * h + highSurrogate(cp);
+                h = 31 * h + lowSurrogate(cp);
+            }
+        }
+        return mix(h);
+    }
+
+    private static int mix(int h) {
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        return h ^ (h >>> 13);
+    }
+
+    private void insert(int index) {
+        // keep the load factor under 0.5
+        if (size * 2 > table.length) {
+            int[] old = table;
+            table = new int[old.length * 2];
+            for (int entry : old) {
+                if (entry != 0) {
+                    put(entry - 1);
+                }
+            }
+        }
+        put(index);
+    }
+
+    private void put(int index) {
+        int mask = table.length - 1;
+        int slot = hash(index) & mask;
+        while (table[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = index + 1;
+    }
+
+    private void ensureByteCapacity(int capacity) {
+        if (capacity > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(capacity, bytes.length * 2));
+        }
+    }
+
+    private void ensureEntryCapacity(int capacity) {
+        if (capacity < starts.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, starts.length * 2);
+        pathOffsets = Arrays.copyOf(pathOffsets, newCapacity + 1);
+        starts = Arrays.copyOf(starts, newCapacity);
+        lengths = Arrays.copyOf(lengths, newCapacity);
+        spaces = Arrays.copyOf(spaces, newCapacity);
+        flags = Arrays.copyOf(flags, newCapacity);
+        hashes = Arrays.copyOf(hashes, newCapacity);
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2017 chimenchen. All rights reserved.
+ */
+
+package org.jchmlib;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * ChmDirectoryIndex looks up objects by walking the PMGI/PMGL B-tree of the
+ * directory of a CHM file, so that the directory doesn't have to be read as
+ * a whole when the file is opened.
+ * <p>
+ * Recently used directory pages are cached.
+ */
+class ChmDirectoryIndex {
+
+    private final static Logger LOG = Logger.getLogger(ChmDirectoryIndex.class.getName());
+    private final static int MAX_CACHED_PAGES = 64;
+    // guards against loops in corrupted files
+    private final static int MAX_DEPTH = 32;
+
+    /**
+     * Offset within file of the first directory page.
+     */
+    final long dirOffset;
+    final int blockLen;
+    /**
+     * The first PMGL page, where the chain of listing pages starts.
+     */
+    final int indexHead;
+    /**
+     * The page where lookups start, either a PMGI page or the sole PMGL page.
+     */
+    final int indexRoot;
+    private final ChmStorage storage;
+    private final LinkedHashMap<Integer, ByteBuffer> pages =
+            new LinkedHashMap<Integer, ByteBuffer>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, ByteBuffer> eldest) {
+                    return size() > MAX_CACHED_PAGES;
+                }
+            };
+
+    ChmDirectoryIndex(ChmStorage storage, long dirOffset, int blockLen,
+            int indexRoot, int indexHead) {
+        this.storage = storage;
+        this.dirOffset = dirOffset;
+        this.blockLen = blockLen;
+        this.indexHead = indexHead;
+        // if the index root is -1, this means we don't have any PMGI blocks.
+        // as a result, we must use the sole PMGL block as the index root
+        this.indexRoot = indexRoot <= -1 ? indexHead : indexRoot;
+    }
+
+    /**
+     * @param path path of the object, compared case-insensitively.
+     * @return the object, or null if not found.
+     */
+    ChmUnitInfo lookup(String path) {
+        try {
+            int page = indexRoot;
+            for (int depth = 0; page >= 0 && depth < MAX_DEPTH; depth++) {
+                ByteBuffer buf = getPage(page);
+                if (isPage(buf, 'L')) {
+                    return findInPmgl(buf, path);
+                } else if (isPage(buf, 'I')) {
+                    page = findInPmgi(buf, path);
+                } else {
+                    LOG.fine("Unexpected directory page " + page);
+                    return null;
+                }
+            }
+        } catch (IOException e) {
+            LOG.fine("Failed to look up " + path + ": " + e);
+        }
+        return null;
+    }
+
+    /**
+     * @return the directory page, positioned at its start.
+     */
+    ByteBuffer getPage(int page) throws IOException {
+        ByteBuffer buf;
+        synchronized (pages) {
+            buf = pages.get(page);
+        }
+        if (buf == null) {
+            buf = storage.fetch(dirOffset + (long) page * blockLen, blockLen);
+            synchronized (pages) {
+                pages.put(page, buf);
+            }
+        }
+        buf = buf.duplicate();
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        return buf;
+    }
+
+    private static boolean isPage(ByteBuffer buf, char kind) {
+        return buf.remaining() >= 8 && buf.get(0) == 'P' && buf.get(1) == 'M' &&
+                buf.get(2) == 'G' && buf.get(3) == kind;
+    }
+
+    /**
+     * @return the last entry of the path, as a later entry replaces earlier ones
+     * when the whole directory is read. Entries of a path differing in case only
+     * are adjacent, so they may continue at the start of the next page.
+     */
+    private ChmUnitInfo findInPmgl(ByteBuffer buf, String path) throws IOException {
+        ChmUnitInfo found = null;
+        boolean nextPage = false;
+        for (int count = 0; count < MAX_DEPTH; count++) {
+            ChmPmglHeader header = new ChmPmglHeader(buf);
+            int end = blockLen - header.freeSpace;
+            boolean matched = false;
+            while (buf.position() < end) {
+                int entryStart = buf.position();
+                String name = parseName(buf);
+                matched = name.equalsIgnoreCase(path);
+                if (matched) {
+                    buf.position(entryStart);
+                    found = new ChmUnitInfo(buf);
+                    continue;
+                }
+                if (nextPage) {
+                    return found;
+                }
+                // skip space, start and length
+                ByteBufferHelper.parseCWord(buf);
+                ByteBufferHelper.parseCWord(buf);
+                ByteBufferHelper.parseCWord(buf);
+            }
+            if (!matched || header.blockNext < 0) {
+                break;
+            }
+            buf = getPage(header.blockNext);
+            if (!isPage(buf, 'L')) {
+                break;
+            }
+            nextPage = true;
+        }
+        return found;
+    }
+
+    /**
+     * @return the child page which may contain the path, that is,
+     * the page of the last entry not greater than the path, or -1.
+     */
+    private int findInPmgi(ByteBuffer buf, String path) throws IOException {
+        int end = blockLen - buf.getInt(4);
+        buf.position(8);
+        int page = -1;
+        while (buf.position() < end) {
+            String name = parseName(buf);
+            if (name.compareToIgnoreCase(path) > 0) {
+                break;
+            }
+            page = (int) ByteBufferHelper.parseCWord(buf);
+        }
+        return page;
+    }
+
+    private static String parseName(ByteBuffer buf) throws IOException {
+        int strLen = (int) ByteBufferHelper.parseCWord(buf);
+        return ByteBufferHelper.parseString(buf, strLen, "UTF8");
+    }
+}
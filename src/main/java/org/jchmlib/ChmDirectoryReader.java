@@ -0,0 +1,180 @@
+/*
+ * Copyright 2017 chimenchen. All rights reserved.
+ */
+
+package org.jchmlib;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ChmDirectoryReader reads the whole directory of a CHM file, i.e. the chain
+ * of PMGL pages, into a {@link ChmDirectory}.
+ * <p>
+ * When there are many pages, they are split into ranges, which are parsed
+ * concurrently on a shared pool of daemon threads, and merged in the order
+ * of the chain.
+ */
+class ChmDirectoryReader {
+
+    private final static int PMGL_HEADER_LEN = 20;
+    /**
+     * Ranges of fewer pages are not worth a task.
+     */
+    private final static int MIN_PAGES_PER_TASK = 32;
+    private final static int THREADS = Runtime.getRuntime().availableProcessors();
+
+    private static ExecutorService executor;
+
+    private final ChmStorage storage;
+    private final long dirOffset;
+    private final int blockLen;
+
+    ChmDirectoryReader(ChmStorage storage, long dirOffset, int blockLen) {
+        this.storage = storage;
+        this.dirOffset = dirOffset;
+        this.blockLen = blockLen;
+    }
+
+    /**
+     * @param indexHead the first PMGL page.
+     * @param parallel whether pages may be parsed on other threads.
+     */
+    ChmDirectory read(int indexHead, boolean parallel) throws IOException {
+        int[] pages = getPages(indexHead);
+        int tasks = parallel ? Math.min(THREADS, pages.length / MIN_PAGES_PER_TASK) : 1;
+
+        ChmDirectory dir = new ChmDirectory();
+        if (tasks <= 1) {
+            parse(dir, pages, 0, pages.length, false, false);
+        } else {
+            readConcurrently(dir, pages, tasks);
+        }
+        dir.trimToSize();
+        return dir;
+    }
+
+    private void readConcurrently(ChmDirectory dir, final int[] pages, int tasks)
+            throws IOException {
+        ArrayList<Future<ChmDirectory>> futures = new ArrayList<Future<ChmDirectory>>();
+        int firstEnd = pages.length / tasks;
+        for (int i = 1; i < tasks; i++) {
+            final int from = (int) ((long) pages.length * i / tasks);
+            final int to = (int) ((long) pages.length * (i + 1) / tasks);
+            futures.add(getExecutor().submit(new Callable<ChmDirectory>() {
+                @Override
+                public ChmDirectory call() throws IOException {
+                    ChmDirectory part = new ChmDirectory();
+                    parse(part, pages, from, to, true, true);
+                    return part;
+                }
+            }));
+        }
+
+        boolean done = false;
+        try {
+            // parse the first range on this thread, while the others are parsed
+            parse(dir, pages, 0, firstEnd, false, false);
+            for (Future<ChmDirectory> future : futures) {
+                dir.addAll(future.get());
+            }
+            done = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading directory");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to read directory table", e.getCause());
+        } finally {
+            if (!done) {
+                for (Future<ChmDirectory> future : futures) {
+                    future.cancel(true);
+                }
+            }
+        }
+    }
+
+    /**
+     * Follows the chain of PMGL pages, only reading their headers.
+     */
+    private int[] getPages(int indexHead) throws IOException {
+        long maxPages = (storage.size() - dirOffset) / blockLen;
+        int[] pages = new int[16];
+        int count = 0;
+        int curPage = indexHead;
+        while (curPage != -1) {
+            if (count >= maxPages) {
+                throw new IOException("Directory table is corrupted");
+            }
+            if (count == pages.length) {
+                int[] newPages = new int[count * 2];
+                System.arraycopy(pages, 0, newPages, 0, count);
+                pages = newPages;
+            }
+            pages[count++] = curPage;
+            curPage = new ChmPmglHeader(fetchPage(curPage, PMGL_HEADER_LEN)).blockNext;
+        }
+        int[] result = new int[count];
+        System.arraycopy(pages, 0, result, 0, count);
+        return result;
+    }
+
+    /**
+     * @param worker whether it runs on a worker thread, which stops once its
+     * task is cancelled. The thread of the caller is left alone.
+     */
+    private void parse(ChmDirectory dir, int[] pages, int from, int to, boolean append,
+            boolean worker) throws IOException {
+        for (int i = from; i < to; i++) {
+            if (worker && Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("Interrupted while reading directory");
+            }
+            ByteBuffer buf = fetchPage(pages[i], blockLen);
+            ChmPmglHeader header = new ChmPmglHeader(buf);
+
+            // scan directory listing entries
+            while (buf.position() < blockLen - header.freeSpace) {
+                if (append) {
+                    dir.append(buf);
+                } else {
+                    dir.add(buf);
+                }
+            }
+        }
+    }
+
+    private ByteBuffer fetchPage(int page, int len) throws IOException {
+        try {
+            return storage.fetch(dirOffset + (long) page * blockLen, len);
+        } catch (IOException e) {
+            throw new IOException("Failed to read directory table", e);
+        }
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            final AtomicInteger count = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r,
+                            "jchmlib-directory-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2017 chimenchen. All rights reserved.
+ */
+
+package org.jchmlib;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * ChmDirectoryTree maps every directory in a {@link ChmDirectory} to its
+ * immediate children, so that listing a directory doesn't scan the whole
+ * directory of the CHM file.
+ * <p>
+ * A directory may have no entry of its own, when only objects under it are
+ * stored. Such directories are still listed as children of their parents,
+ * as implied directories.
+ */
+class ChmDirectoryTree {
+
+    private final static int[] NO_CHILDREN = new int[0];
+
+    private final ChmDirectory directory;
+    /**
+     * Mapping from directory paths (case-sensitive, ending with "/") to children.
+     * A child is either an entry index, or -(k + 1) for the k-th implied directory.
+     */
+    private final HashMap<String, int[]> childrenOfDir = new HashMap<String, int[]>();
+    private final ArrayList<String> impliedDirs = new ArrayList<String>();
+
+    ChmDirectoryTree(ChmDirectory directory) {
+        this.directory = directory;
+
+        HashMap<String, IntList> lists = new HashMap<String, IntList>();
+        for (int i = 0; i < directory.size(); i++) {
+            String path = directory.getPath(i);
+            if (path.endsWith("/")) {
+                if (!lists.containsKey(path)) {
+                    lists.put(path, new IntList());
+                    addChild(lists, path, i);
+                }
+            } else {
+                addChild(lists, path, i);
+            }
+        }
+
+        for (Map.Entry<String, IntList> entry : lists.entrySet()) {
+            childrenOfDir.put(entry.getKey(), entry.getValue().toArray());
+        }
+    }
+
+    /**
+     * @param dir path of a directory, ending with "/".
+     * @return the immediate children of the directory, in the order of the
+     * CHM directory. Use {@link #getChild(int)} to get them.
+     */
+    int[] getChildren(String dir) {
+        int[] children = childrenOfDir.get(dir);
+        return children == null ? NO_CHILDREN : children;
+    }
+
+    ChmUnitInfo getChild(int child) {
+        if (child >= 0) {
+            return directory.get(child);
+        }
+        return new ChmUnitInfo(impliedDirs.get(-child - 1));
+    }
+
+    /**
+     * Adds a child to the directory containing it, creating implied
+     * directories up the path as needed.
+     */
+    private void addChild(HashMap<String, IntList> lists, String path, int child) {
+        String parent = getParent(path);
+        if (parent == null) {
+            return;
+        }
+        IntList children = lists.get(parent);
+        if (children == null) {
+            children = new IntList();
+            lists.put(parent, children);
+            impliedDirs.add(parent);
+            addChild(lists, parent, -impliedDirs.size());
+        }
+        children.add(child);
+    }
+
+    /**
+     * @return the directory containing the path, or null for top level paths.
+     */
+    private static String getParent(String path) {
+        int end = path.endsWith("/") ? path.length() - 1 : path.length();
+        int index = path.lastIndexOf('/', end - 1);
+        return index < 0 ? null : path.substring(0, index + 1);
+    }
+
+    private static class IntList {
+
+        private int[] values = new int[4];
+        private int size = 0;
+
+        void add(int value) {
+            if (size == values.length) {
+                int[] newValues = new int[size * 2];
+                System.arraycopy(values, 0, newValues, 0, size);
+                values = newValues;
+            }
+            values[size++] = value;
+        }
+
+        int[] toArray() {
+            int[] result = new int[size];
+            System.arraycopy(values, 0, result, 0, size);
+            return result;
+        }
+    }
+}
@@ -4,12 +4,23 @@
 
 package org.jchmlib;
 
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.logging.Logger;
 
@@ -18,7 +29,7 @@ import java.util.logging.Logger;
  * (also known as Html Help files).
  */
 
-public class ChmFile {
+public class ChmFile implements Closeable {
 
     /**
      * Path starts with "/", but not "/#" and "/$".
@@ -54,13 +65,28 @@ public class ChmFile {
      * CHM_ENUMERATE_DIRS
      */
     public final static int CHM_ENUMERATE_ALL = 31;
+    /**
+     * Not a type of objects, but an option of {@link #enumerate(int, ChmEnumerator)}:
+     * enumerate objects in the order their content is stored, by content section
+     * and start offset, instead of the order of the directory. Reading objects in
+     * this order decompresses the compressed section in one forward sweep.
+     */
+    public final static int CHM_ENUMERATE_STORAGE_ORDER = 32;
+    /**
+     * Default memory limit (in bytes) of the decompressed block cache.
+     */
+    public final static long DEFAULT_BLOCK_CACHE_SIZE = 4 * 1024 * 1024;
+    /**
+     * Reads of up to 1/PARTIAL_DECODE_DIVISOR of a block decompress it only as far as needed.
+     */
+    private final static int PARTIAL_DECODE_DIVISOR = 2;
 
     final static int FTS_HEADER_LEN = 0x82;  // was 0x32;
     private final static int CHM_LZXC_RESETTABLE_V1_LEN = 0x28;
     private final static int CHM_ITSF_V3_LEN = 0X60;
     private final static int CHM_ITSP_V1_LEN = 0X54;
-    private final static int CHM_COMPRESSED = 1;
-    private final static int CHM_UNCOMPRESSED = 0;
+    final static int CHM_COMPRESSED = 1;
+    final static int CHM_UNCOMPRESSED = 0;
 
     // names of sections essential to decompression
     private final static String CHMU_RESET_TABLE =
@@ -73,12 +99,27 @@ public class ChmFile {
             "::DataSpace/Storage/MSCompressed/Content";
 
     private final static Logger LOG = Logger.getLogger(ChmFile.class.getName());
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+    /**
+     * Path of the topics file, i.e. the last .hhc file.
+     */
+    private final static String CONTENTS_PATH = "/@contents";
     /**
-     * Mapping from paths to {@link ChmUnitInfo} objects.
+     * The whole directory, in the order of entries in the CHM file.
+     * Null until it is read, if the directory is read lazily.
      */
-    // LinkedHashMap, since we want it to remember the order
-    // mappings are inserted.
-    private final HashMap<String, ChmUnitInfo> dirMap = new LinkedHashMap<String, ChmUnitInfo>();
+    private volatile ChmDirectory directory = null;
+    private ChmDirectoryIndex directoryIndex;
+    /**
+     * The sidecar to write, and the CHM file, once the directory is read lazily.
+     */
+    private File pendingSidecar = null;
+    private String pendingSidecarSource = null;
+    private boolean parallelDirectory = true;
+    /**
+     * Children of every directory, built when directories are first enumerated.
+     */
+    private volatile ChmDirectoryTree directoryTree = null;
     String encoding = "UTF-8";
     /**
      * Mapping from paths to titles.
@@ -90,7 +131,7 @@ public class ChmFile {
     private String indexFile;
     private String title;
     private String generator;
-    private RandomAccessFile rf;
+    private ChmStorage storage;
     private int langIDInItsfHeader;
     /**
      * Offset within file of content section 0
@@ -104,8 +145,15 @@ public class ChmFile {
     private int windowSize;
     private int resetBlockCount;
     private boolean compressionDisabled = false;
-    // decompressor
-    private LZXInflator lzxInflator;
+    // decompressors
+    private LZXInflatorPool inflatorPool;
+    private AbstractBlockCache blockCache;
+    private final LZXCheckpointCache checkpoints = new LZXCheckpointCache(0, 0);
+    private ChmReadahead readahead = null;
+    /**
+     * The decompressed content section saved in a file, if enabled.
+     */
+    private ChmContentCache contentCache = null;
     /*
      * A {@link ChmTopicsTree} object containing topics in the Chm file.
      */
@@ -119,18 +167,270 @@ public class ChmFile {
      * @throws IOException if the file doesn't exist or the file is of the wrong format.
      */
     public ChmFile(String filename) throws IOException {
+        this(filename, new ChmFileOptions());
+    }
+
+    /**
+     * Creates a new ChmFile.
+     *
+     * @param filename the system-dependent filename of the CHM file
+     * @param options options controlling how the file is opened.
+     * @throws IOException if the file doesn't exist or the file is of the wrong format.
+     */
+    public ChmFile(String filename, ChmFileOptions options) throws IOException {
+        RandomAccessFile rf;
         try {
             rf = new RandomAccessFile(filename, "r");
         } catch (Exception e) {
             LOG.info("Error open CHM file: " + e);
             throw new IOException(e);
         }
+        storage = openStorage(rf.getChannel(), options);
+        init(filename, options);
+    }
+
+    /**
+     * Creates a new ChmFile from a CHM file in memory, e.g. read from a zip
+     * file or a database, or mapped by the caller.
+     *
+     * @param buffer the CHM file, from its position to its limit.
+     * @throws IOException if the file is of the wrong format.
+     * @see #ChmFile(ByteBuffer, ChmFileOptions)
+     */
+    public ChmFile(ByteBuffer buffer) throws IOException {
+        this(buffer, new ChmFileOptions());
+    }
+
+    /**
+     * Creates a new ChmFile from a CHM file in memory, e.g. read from a zip
+     * file or a database, or mapped by the caller.
+     * <p>
+     * The buffer is used as it is, without copying it, so it should not be
+     * modified while this ChmFile is in use. Since there is no file, sidecars
+     * and the content cache are not used.
+     *
+     * @param buffer the CHM file, from its position to its limit.
+     * @param options options controlling how the file is opened.
+     * @throws IOException if the file is of the wrong format.
+     */
+    public ChmFile(ByteBuffer buffer, ChmFileOptions options) throws IOException {
+        storage = new ChmBufferStorage(buffer);
+        init(null, options);
+    }
+
+    /**
+     * Creates a new ChmFile reading a CHM file from a channel.
+     *
+     * @param channel the channel, which is closed when this ChmFile is closed.
+     * @throws IOException if the channel can't be read or the file is of the wrong format.
+     * @see #ChmFile(SeekableByteChannel, ChmFileOptions)
+     */
+    public ChmFile(SeekableByteChannel channel) throws IOException {
+        this(channel, new ChmFileOptions());
+    }
+
+    /**
+     * Creates a new ChmFile reading a CHM file from a channel, e.g. a channel
+     * of an entry in a zip file system, or of an object store.
+     * <p>
+     * A {@link FileChannel} is memory mapped, or read with positional reads,
+     * as a file would be. Other channels are read one range at a time.
+     * Since there is no file name, sidecars and the content cache are not used.
+     *
+     * @param channel the channel, which is closed when this ChmFile is closed.
+     * @param options options controlling how the file is opened.
+     * @throws IOException if the channel can't be read or the file is of the wrong format.
+     */
+    public ChmFile(SeekableByteChannel channel, ChmFileOptions options) throws IOException {
+        storage = openStorage(channel, options);
+        init(null, options);
+    }
+
+    /**
+     * Parses the CHM file once the storage is open.
+     *
+     * @param filename the file name, or null if it isn't opened from a file.
+     */
+    private void init(String filename, ChmFileOptions options) throws IOException {
+        parallelDirectory = options.isParallelDirectory();
+        if (options.getSharedBlockCache() != null) {
+            blockCache = options.getSharedBlockCache().register();
+        } else {
+            blockCache = new ChmBlockCache(DEFAULT_BLOCK_CACHE_SIZE);
+        }
+
+        try {
+            File sidecarFile = null;
+            if (options.getSidecarDirectory() != null && filename != null) {
+                sidecarFile = ChmSidecar.getFile(options.getSidecarDirectory(),
+                        new File(filename));
+            }
+            if (sidecarFile != null && readSidecar(sidecarFile, filename)) {
+                initInflator(options);
+            } else {
+                readInitialHeaderAndDirectory(options);
+                readResetTable();
+                readControlData();
+                initInflator(options);
+                initMiscFiles(filename);
+                if (sidecarFile != null && directory != null) {
+                    writeSidecar(sidecarFile, filename);
+                } else if (sidecarFile != null) {
+                    // don't read the whole directory just for the sidecar
+                    pendingSidecar = sidecarFile;
+                    pendingSidecarSource = filename;
+                }
+            }
+            if (filename != null) {
+                initContentCache(filename, options);
+            }
+        } catch (IOException e) {
+            blockCache.clear();
+            storage.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Restores what is parsed when opening the file from a sidecar,
+     * if the sidecar is still valid.
+     *
+     * @return true if the sidecar is used.
+     */
+    private boolean readSidecar(File sidecarFile, String filename) {
+        ChmSidecar sidecar = ChmSidecar.read(sidecarFile);
+        if (sidecar == null) {
+            return false;
+        }
+        File file = new File(filename);
+        try {
+            if (!file.getAbsolutePath().equals(sidecar.path) ||
+                    file.length() != sidecar.fileSize || storage.size() != sidecar.fileSize ||
+                    file.lastModified() != sidecar.lastModified ||
+                    ChmSidecar.getHeaderChecksum(storage, CHM_ITSF_V3_LEN, CHM_ITSP_V1_LEN)
+                            != sidecar.headerChecksum) {
+                LOG.info("Sidecar is out of date: " + sidecarFile);
+                return false;
+            }
+        } catch (IOException e) {
+            return false;
+        }
+
+        langIDInItsfHeader = sidecar.langIDInItsfHeader;
+        dataOffset = sidecar.dataOffset;
+        directoryIndex = new ChmDirectoryIndex(storage, sidecar.dirOffset, sidecar.dirBlockLen,
+                sidecar.indexRoot, sidecar.indexHead);
+        directory = sidecar.directory;
+
+        compressionDisabled = sidecar.compressionDisabled;
+        blockUncompressedLen = sidecar.blockUncompressedLen;
+        windowSize = sidecar.windowSize;
+        resetBlockCount = sidecar.resetBlockCount;
+        resetTable = sidecar.resetTable;
+
+        encoding = sidecar.encoding;
+        detectedLCID = sidecar.detectedLCID;
+        homeFile = sidecar.homeFile;
+        topicsFile = sidecar.topicsFile;
+        indexFile = sidecar.indexFile;
+        title = sidecar.title;
+        generator = sidecar.generator;
+        LOG.fine("Opened from sidecar " + sidecarFile);
+        return true;
+    }
+
+    /**
+     * Writes a sidecar, once the whole directory is read.
+     */
+    private void writeSidecar(File sidecarFile, String filename) {
+        ChmSidecar sidecar = new ChmSidecar();
+        File file = new File(filename);
+        sidecar.path = file.getAbsolutePath();
+        sidecar.fileSize = storage.size();
+        sidecar.lastModified = file.lastModified();
+        try {
+            sidecar.headerChecksum = ChmSidecar.getHeaderChecksum(storage,
+                    CHM_ITSF_V3_LEN, CHM_ITSP_V1_LEN);
+        } catch (IOException e) {
+            return;
+        }
+
+        sidecar.langIDInItsfHeader = langIDInItsfHeader;
+        sidecar.dataOffset = dataOffset;
+        sidecar.dirOffset = directoryIndex.dirOffset;
+        sidecar.dirBlockLen = directoryIndex.blockLen;
+        sidecar.indexRoot = directoryIndex.indexRoot;
+        sidecar.indexHead = directoryIndex.indexHead;
+        sidecar.directory = directory;
+
+        sidecar.compressionDisabled = compressionDisabled;
+        sidecar.blockUncompressedLen = blockUncompressedLen;
+        sidecar.windowSize = windowSize;
+        sidecar.resetBlockCount = resetBlockCount;
+        sidecar.resetTable = resetTable;
+
+        sidecar.encoding = encoding;
+        sidecar.detectedLCID = detectedLCID;
+        sidecar.homeFile = homeFile;
+        sidecar.topicsFile = topicsFile;
+        sidecar.indexFile = indexFile;
+        sidecar.title = title;
+        sidecar.generator = generator;
+        sidecar.write(sidecarFile);
+    }
+
+    private void initContentCache(String filename, ChmFileOptions options) {
+        if (options.getContentCacheDirectory() == null || compressionDisabled) {
+            return;
+        }
+        long headerChecksum;
+        try {
+            headerChecksum = ChmSidecar.getHeaderChecksum(storage,
+                    CHM_ITSF_V3_LEN, CHM_ITSP_V1_LEN);
+        } catch (IOException e) {
+            return;
+        }
+        contentCache = new ChmContentCache(options.getContentCacheDirectory(),
+                new File(filename), storage.size(), headerChecksum, blockUncompressedLen,
+                (long) (resetTable.length - 1) * blockUncompressedLen,
+                options.getContentCacheBudget());
+        contentCache.open(this);
+    }
 
-        readInitialHeaderAndDirectory();
-        readResetTable();
-        readControlData();
-        initInflator();
-        initMiscFiles(filename);
+    static ChmStorage openStorage(SeekableByteChannel channel, ChmFileOptions options)
+            throws IOException {
+        if (options.isMemoryMapped() && channel instanceof FileChannel) {
+            try {
+                return new ChmMappedStorage((FileChannel) channel);
+            } catch (IOException e) {
+                // e.g. running out of address space on 32-bit VMs
+                LOG.info("Failed to map CHM file, fall back to positional reads: " + e);
+            }
+        }
+        try {
+            return new ChmChannelStorage(channel);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Closes the underlying file.
+     * <p>
+     * Buffers returned by this ChmFile may still refer to the memory mapping
+     * of the file, which is released once they are garbage collected.
+     */
+    public void close() throws IOException {
+        if (readahead != null) {
+            readahead.close();
+        }
+        // blocks in a shared cache are no longer needed
+        blockCache.clear();
+        if (contentCache != null) {
+            contentCache.close();
+        }
+        storage.close();
     }
 
     /**
@@ -171,6 +471,60 @@ public class ChmFile {
         }
     }
 
+    /**
+     * @return the cache of decompressed blocks. Use it to change the memory limit
+     * or to check hit/miss/eviction counters. For a cache shared with other CHM
+     * files, the memory limit only applies to the blocks of this CHM file, within
+     * the one of the shared cache, and counters only count the blocks of this CHM file.
+     */
+    public AbstractBlockCache getBlockCache() {
+        return blockCache;
+    }
+
+    /**
+     * Sets the maximum number of LZX decompressors. Each has its own window,
+     * and they allow blocks in different reset intervals to be decompressed
+     * in parallel. The default is the number of available processors.
+     *
+     * @param size maximum number of decompressors, at least 1.
+     */
+    public void setInflatorPoolSize(int size) {
+        if (inflatorPool != null) {
+            inflatorPool.setMaxSize(size);
+        }
+    }
+
+    /**
+     * Sets how many blocks are decompressed ahead of sequential reads,
+     * see {@link ChmFileOptions#setReadaheadDepth(int)}.
+     *
+     * @param depth number of blocks, 0 disables readahead.
+     */
+    public void setReadaheadDepth(int depth) {
+        if (readahead != null) {
+            readahead.setDepth(depth);
+        }
+    }
+
+    /**
+     * Enables or disables inflator checkpoints.
+     * <p>
+     * When reading block N, all blocks since the last reset point have to be
+     * decompressed first. With checkpoints, the state of the decompressor
+     * (including its window) is saved every few blocks, so that a later
+     * random read can resume from the nearest checkpoint instead.
+     * It helps CHM files with long reset intervals.
+     *
+     * @param blockInterval save a checkpoint every blockInterval blocks within a reset
+     * interval. 0 disables checkpoints, which is the default.
+     * @param maxBytes maximum memory used by checkpoints. Least recently used checkpoints
+     * are dropped when the limit is reached. Each checkpoint takes up to the window size of the
+     * CHM file (32KB to 2MB).
+     */
+    public void setInflatorCheckpoints(int blockInterval, long maxBytes) {
+        checkpoints.configure(blockInterval, maxBytes);
+    }
+
     /**
      * @return Path of the main file (default file to show on startup).
      */
@@ -224,7 +578,7 @@ public class ChmFile {
         return detectedLCID;
     }
 
-    private void readInitialHeaderAndDirectory() throws IOException {
+    private void readInitialHeaderAndDirectory(ChmFileOptions options) throws IOException {
         ByteBuffer bb = fetchBytesOrFail(0, CHM_ITSF_V3_LEN, "Failed to read ITSF header");
         ChmItsfHeader itsfHeader = new ChmItsfHeader(bb);
         LOG.info(String.format("Language ID: 0x%x", itsfHeader.langId));
@@ -233,52 +587,71 @@ public class ChmFile {
         // dirOffset = itsfHeader.dirOffset;
         dataOffset = itsfHeader.dataOffset;
 
-        readDirectory(itsfHeader.dirOffset);
+        readDirectory(itsfHeader.dirOffset, options.isLazyDirectory());
     }
 
-    private void readDirectory(long dirOffset) throws IOException {
+    private void readDirectory(long dirOffset, boolean lazy) throws IOException {
         ByteBuffer bb = fetchBytesOrFail(dirOffset, CHM_ITSP_V1_LEN, "Failed to read ITSP header");
         ChmItspHeader itspHeader = new ChmItspHeader(bb);
 
         // grab essential information from ITSP header
         dirOffset += itspHeader.headerLen;
-        // int indexRoot = itspHeader.indexRoot;
-        int indexHead = itspHeader.indexHead;
-        // dirBlockLen = itspHeader.blockLen;
-
-        // if the index root is -1, this means we don't have any PMGI blocks.
-        // as a result, we must use the sole PMGL block as the index root
-        // if (indexRoot <= -1) {
-        // indexRoot = indexHead;
-        // }
+        directoryIndex = new ChmDirectoryIndex(storage, dirOffset, itspHeader.blockLen,
+                itspHeader.indexRoot, itspHeader.indexHead);
 
-        readDirectoryTable(indexHead, dirOffset, itspHeader.blockLen);
+        if (!lazy) {
+            directory = readDirectoryTable(itspHeader.indexHead, dirOffset,
+                    itspHeader.blockLen);
+        }
     }
 
-    private void readDirectoryTable(int indexHead, long dirOffset, int dirBlockLen)
-            throws IOException {
-        int curPage = indexHead;
-        while (curPage != -1) {
-            ByteBuffer buf = fetchBytesOrFail(
-                    dirOffset + curPage * dirBlockLen, dirBlockLen,
-                    "Failed to read directory table");
-            ChmPmglHeader header = new ChmPmglHeader(buf);
-
-            // scan directory listing entries
-            while (buf.position() < dirBlockLen - header.freeSpace) {
-                // parse a PMGL entry into a ChmUnitInfo object
-                ChmUnitInfo ui = new ChmUnitInfo(buf);
-                dirMap.put(ui.path.toLowerCase(), ui);
-                if (ui.path.toLowerCase().endsWith(".hhc")) {
-                    dirMap.put("/@contents", ui);
+    /**
+     * Reads the whole directory, if it hasn't been read when the file is opened.
+     */
+    private ChmDirectory loadDirectory() {
+        ChmDirectory dir = directory;
+        if (dir != null) {
+            return dir;
+        }
+        synchronized (directoryIndex) {
+            if (directory == null) {
+                try {
+                    directory = readDirectoryTable(directoryIndex.indexHead,
+                            directoryIndex.dirOffset, directoryIndex.blockLen);
+                    if (pendingSidecar != null) {
+                        writeSidecar(pendingSidecar, pendingSidecarSource);
+                        pendingSidecar = null;
+                        pendingSidecarSource = null;
+                    }
+                } catch (IOException e) {
+                    LOG.info("Failed to read directory: " + e);
+                    directory = new ChmDirectory();
                 }
             }
+            return directory;
+        }
+    }
 
-            // advance to next page
-            curPage = header.blockNext;
+    private ChmDirectoryTree loadDirectoryTree() {
+        ChmDirectoryTree tree = directoryTree;
+        if (tree != null) {
+            return tree;
+        }
+        ChmDirectory dir = loadDirectory();
+        synchronized (dir) {
+            if (directoryTree == null) {
+                directoryTree = new ChmDirectoryTree(dir);
+            }
+            return directoryTree;
         }
     }
 
+    private ChmDirectory readDirectoryTable(int indexHead, long dirOffset, int dirBlockLen)
+            throws IOException {
+        return new ChmDirectoryReader(storage, dirOffset, dirBlockLen)
+                .read(indexHead, parallelDirectory);
+    }
+
     private void readResetTable() throws IOException {
         compressionDisabled = false;
 
@@ -340,10 +713,15 @@ public class ChmFile {
         windowSize = ctlData.windowSize;
     }
 
-    private void initInflator() {
+    private void initInflator(ChmFileOptions options) {
         // real window size is 2^lwindow_size
         int lwindow_size = ffs(windowSize) - 1;
-        lzxInflator = new LZXInflator(lwindow_size);
+        inflatorPool = new LZXInflatorPool(lwindow_size,
+                Runtime.getRuntime().availableProcessors(), options.isFastLzxDecoding());
+        if (resetTable != null) {
+            readahead = new ChmReadahead(this, resetTable.length - 1,
+                    options.getReadaheadDepth());
+        }
     }
 
     private void initMiscFiles(String filename) {
@@ -372,7 +750,11 @@ public class ChmFile {
                 homeFile = "/index.htm";
             }
         }
-        if (title == null || title.length() == 0) {
+        if (filename == null) {
+            if (title == null) {
+                title = "";
+            }
+        } else if (title == null || title.length() == 0) {
             title = filename.replaceFirst("[.][^.]+$", "")
                     .replaceAll(".*[\\\\/]|\\.[^.]*$", "");
         }
@@ -454,10 +836,87 @@ public class ChmFile {
      * @return the CHM unit info matching the path, or null if not found.
      */
     public ChmUnitInfo resolveObject(String objPath) {
-        if (dirMap != null && objPath != null && dirMap.containsKey(objPath.toLowerCase())) {
-            return dirMap.get(objPath.toLowerCase());
+        return resolveObject((CharSequence) objPath);
+    }
+
+    /**
+     * Same as {@link #resolveObject(String)}, but the path can be any CharSequence,
+     * such as a StringBuilder reused by a request parser.
+     * No memory is allocated to find the object, except in lazy directory mode.
+     */
+    public ChmUnitInfo resolveObject(CharSequence objPath) {
+        if (objPath == null) {
+            return null;
+        }
+        ChmDirectory dir = directory;
+        if (dir == null) {
+            return resolveObjectLazily(objPath.toString());
+        }
+        if (isContentsPath(objPath)) {
+            return dir.getContents();
+        }
+        int index = dir.indexOf(objPath);
+        return index < 0 ? null : dir.get(index);
+    }
+
+    /**
+     * Same as {@link #resolveObject(String)}, but the path is encoded in UTF-8,
+     * e.g. as it is in a request line.
+     * No memory is allocated to find the object, except in lazy directory mode.
+     *
+     * @param objPath buffer holding the path.
+     * @param offset offset of the path in the buffer.
+     * @param length length of the path in bytes.
+     */
+    public ChmUnitInfo resolveObject(byte[] objPath, int offset, int length) {
+        if (objPath == null) {
+            return null;
+        }
+        ChmDirectory dir = directory;
+        if (dir == null || isContentsPath(objPath, offset, length)) {
+            return resolveObject(new String(objPath, offset, length, UTF8));
         }
-        return null;
+        int index = dir.indexOf(objPath, offset, length);
+        return index < 0 ? null : dir.get(index);
+    }
+
+    private static boolean isContentsPath(CharSequence path) {
+        if (path.length() != CONTENTS_PATH.length()) {
+            return false;
+        }
+        for (int i = 0; i < path.length(); i++) {
+            if (Character.toLowerCase(path.charAt(i)) != CONTENTS_PATH.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isContentsPath(byte[] path, int offset, int length) {
+        if (length != CONTENTS_PATH.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (Character.toLowerCase((char) path[offset + i]) != CONTENTS_PATH.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private ChmUnitInfo resolveObjectLazily(String objPath) {
+        if (!isContentsPath(objPath)) {
+            return directoryIndex.lookup(objPath);
+        }
+        // "/@contents" is the last .hhc file in the directory,
+        // which is normally the topics file.
+        if (topicsFile != null && topicsFile.toLowerCase().endsWith(".hhc")) {
+            ChmUnitInfo ui = directoryIndex.lookup(topicsFile);
+            if (ui != null) {
+                return ui;
+            }
+        }
+        return loadDirectory().getContents();
     }
 
     public String retrieveObjectAsString(ChmUnitInfo ui) {
@@ -529,9 +988,8 @@ public class ChmFile {
                     buf.order(ByteOrder.LITTLE_ENDIAN);
                 }
 
-                int numRead = buf0.remaining();
-                buf.put(buf0.array(), buf0.arrayOffset() + buf0.position(), numRead);
-                numSaved += numRead;
+                numSaved += buf0.remaining();
+                buf.put(buf0);
             }
 
             if (buf != null) {
@@ -543,13 +1001,482 @@ public class ChmFile {
         return buf;
     }
 
+    /**
+     * Gets the number of reset intervals in the compressed content section.
+     * Each reset interval can be decompressed independently of the others.
+     *
+     * @return number of reset intervals, or 0 if there is no compressed content.
+     */
+    public int getResetIntervalCount() {
+        if (compressionDisabled) {
+            return 0;
+        }
+        int blockCount = resetTable.length - 1;
+        return (blockCount + resetBlockCount - 1) / resetBlockCount;
+    }
+
+    /**
+     * Gets where a reset interval starts in the compressed content section,
+     * after decompression, as in {@link ChmUnitInfo#getStart()}.
+     *
+     * @param interval index of the reset interval. If it equals
+     * {@link #getResetIntervalCount()}, the end of the last interval is returned.
+     * @return the offset of the reset interval.
+     */
+    public long getResetIntervalStart(int interval) {
+        if (compressionDisabled) {
+            return 0;
+        }
+        int block = Math.min(interval * resetBlockCount, resetTable.length - 1);
+        return (long) block * blockUncompressedLen;
+    }
+
+    /**
+     * Decompresses a whole reset interval, without going through the block cache.
+     * Different reset intervals can be decompressed on different threads in parallel.
+     *
+     * @param interval index of the reset interval.
+     * @return a buffer holding the decompressed interval, from
+     * {@link #getResetIntervalStart(int)} of interval to that of interval + 1,
+     * or null if interval is out of range or there is error when decompressing.
+     */
+    public ByteBuffer decompressResetInterval(int interval) {
+        if (interval < 0 || interval >= getResetIntervalCount()) {
+            return null;
+        }
+
+        int firstBlock = interval * resetBlockCount;
+        int endBlock = Math.min(firstBlock + resetBlockCount, resetTable.length - 1);
+
+        ChmStorage content = getContent();
+        if (content != null) {
+            try {
+                ByteBuffer buf = content.fetch((long) firstBlock * blockUncompressedLen,
+                        (endBlock - firstBlock) * blockUncompressedLen);
+                ByteBuffer out = ByteBuffer.allocate(buf.remaining());
+                out.order(ByteOrder.LITTLE_ENDIAN);
+                out.put(buf);
+                out.flip();
+                return out;
+            } catch (IOException e) {
+                LOG.fine("Failed to read content cache: " + e);
+            }
+        }
+
+        LZXInflatorPool.Entry entry;
+        try {
+            entry = inflatorPool.acquire(firstBlock, firstBlock);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+
+        try {
+            entry.nextBlock = -1;
+            entry.partialBlock = null;
+            entry.inflator.reset();
+
+            ByteBuffer out = ByteBuffer.allocate((endBlock - firstBlock) * blockUncompressedLen);
+            out.order(ByteOrder.LITTLE_ENDIAN);
+            for (int curBlockIdx = firstBlock; curBlockIdx < endBlock; curBlockIdx++) {
+                ByteBuffer buf0 = fetchBytes(resetTable[curBlockIdx],
+                        resetTable[curBlockIdx + 1] - resetTable[curBlockIdx]);
+                if (buf0 == null) {
+                    return null;
+                }
+                if (!entry.inflator.decompress(buf0, out.array(),
+                        (curBlockIdx - firstBlock) * blockUncompressedLen, blockUncompressedLen)) {
+                    return null;
+                }
+                entry.nextBlock = curBlockIdx + 1;
+            }
+            return out;
+        } finally {
+            inflatorPool.release(entry);
+        }
+    }
+
+    /**
+     * Retrieve an object, avoiding copies where possible.
+     *
+     * @param ui an abstract representation of the object.
+     * @return a ByteBuffer holding the content of the object, or null if ui is invalid or there is
+     * error when retrieving the object.
+     * @see #retrieveObjectView(ChmUnitInfo, long, long)
+     */
+    public ByteBuffer retrieveObjectView(ChmUnitInfo ui) {
+        if (ui == null) {
+            return null;
+        }
+        return retrieveObjectView(ui, 0, ui.length);
+    }
+
+    /**
+     * Retrieve (part of) an object, avoiding copies where possible.
+     * <p>
+     * If the object is stored uncompressed, or the part lies within one decompressed
+     * block, the returned buffer is a read-only view of the file or of the block cache.
+     * Otherwise the part is copied into a new buffer, as in
+     * {@link #retrieveObject(ChmUnitInfo, long, long)}.
+     * Either way, the content of the returned buffer should not be modified.
+     *
+     * @param ui an abstract representation of the object.
+     * @param addr starting address(relative to start of the object)
+     * @param len length(in bytes) to be retrieved.
+     * @return a ByteBuffer holding (part of) the content of the object, or null if ui is invalid or
+     * there is error when retrieving the object.
+     */
+    public ByteBuffer retrieveObjectView(ChmUnitInfo ui, long addr, long len) {
+        if (ui == null) {
+            return null;
+        }
+
+        // starting address must be in correct range
+        if (addr < 0 || addr >= ui.length) {
+            return null;
+        }
+
+        // clip length
+        if (addr + len > ui.length) {
+            len = ui.length - addr;
+        }
+
+        if (len <= 0) {
+            return retrieveObject(ui, addr, len);
+        }
+
+        ByteBuffer chunk = retrieveChunk(ui, addr, len);
+        if (chunk == null) {
+            return null;
+        }
+        if (chunk.remaining() >= len) {
+            ByteBuffer view = chunk.asReadOnlyBuffer();
+            view.order(ByteOrder.LITTLE_ENDIAN);
+            return view;
+        }
+
+        // the part spans blocks, copy it
+        ByteBuffer buf = ByteBuffer.allocate((int) len);
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        buf.put(chunk);
+        while (buf.hasRemaining()) {
+            chunk = retrieveChunk(ui, addr + buf.position(), buf.remaining());
+            if (chunk == null || chunk.remaining() == 0) {
+                break;
+            }
+            buf.put(chunk);
+        }
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Reads part of an object into a buffer, as a positional read of a channel does.
+     * The bytes are copied from the file, the content cache or the block cache,
+     * so small reads don't create buffers.
+     *
+     * @param ui an abstract representation of the object.
+     * @param position starting address(relative to start of the object)
+     * @param dst the buffer to read into, from its position up to its limit.
+     * @return the number of bytes read, or -1 if ui is null or position is at or past the end
+     * of the object.
+     * @throws IOException if there is error when reading the object. Some bytes may have
+     * been read into dst already.
+     */
+    public int read(ChmUnitInfo ui, long position, ByteBuffer dst) throws IOException {
+        if (position < 0) {
+            throw new IllegalArgumentException("Negative position " + position);
+        }
+        if (ui == null || position >= ui.length) {
+            return -1;
+        }
+
+        int len = (int) Math.min(dst.remaining(), ui.length - position);
+        if (ui.space == CHM_UNCOMPRESSED) {
+            storage.read(dataOffset + ui.start + position, dst, len);
+            return len;
+        }
+        if (compressionDisabled) {
+            throw new IOException("Compressed content is not available");
+        }
+
+        long start = ui.start + position;
+        ChmStorage content = getContent();
+        if (content != null) {
+            content.read(start, dst, len);
+            return len;
+        }
+        int numRead = 0;
+        while (numRead < len) {
+            int block = (int) ((start + numRead) / blockUncompressedLen);
+            int offset = (int) ((start + numRead) % blockUncompressedLen);
+            int n = Math.min(len - numRead, blockUncompressedLen - offset);
+            ByteBufferHelper.copy(getSharedBlock(block, offset + n), offset, dst, n);
+            numRead += n;
+        }
+        return len;
+    }
+
+    /**
+     * Reads a little-endian short in an object, without creating buffers.
+     *
+     * @param ui an abstract representation of the object.
+     * @param position starting address(relative to start of the object)
+     * @throws EOFException if ui is null or the short is not within the object.
+     * @throws IOException if there is error when reading the object.
+     */
+    public short readShort(ChmUnitInfo ui, long position) throws IOException {
+        return (short) readLittleEndian(ui, position, 2);
+    }
+
+    /**
+     * Reads a little-endian int in an object, without creating buffers.
+     *
+     * @see #readShort(ChmUnitInfo, long)
+     */
+    public int readInt(ChmUnitInfo ui, long position) throws IOException {
+        return (int) readLittleEndian(ui, position, 4);
+    }
+
+    /**
+     * Reads a little-endian long in an object, without creating buffers.
+     *
+     * @see #readShort(ChmUnitInfo, long)
+     */
+    public long readLong(ChmUnitInfo ui, long position) throws IOException {
+        return readLittleEndian(ui, position, 8);
+    }
+
+    private long readLittleEndian(ChmUnitInfo ui, long position, int size) throws IOException {
+        if (ui == null) {
+            throw new EOFException("Can't read " + size + " bytes of no object");
+        }
+        if (position < 0 || position > ui.length - size) {
+            throw new EOFException("Can't read " + size + " bytes at " + position
+                    + " of " + ui.path);
+        }
+
+        ChmStorage source;
+        long offset;
+        if (ui.space == CHM_UNCOMPRESSED) {
+            source = storage;
+            offset = dataOffset + ui.start + position;
+        } else if (compressionDisabled) {
+            throw new IOException("Compressed content is not available");
+        } else {
+            source = getContent();
+            offset = ui.start + position;
+        }
+
+        long value = 0;
+        ByteBuffer buf = null;
+        int bufBlock = -1;
+        for (int i = 0; i < size; i++, offset++) {
+            byte b;
+            if (source != null) {
+                b = source.get(offset);
+            } else {
+                int block = (int) (offset / blockUncompressedLen);
+                int index = (int) (offset % blockUncompressedLen);
+                if (block != bufBlock) {
+                    buf = getSharedBlock(block, index + size - i);
+                    bufBlock = block;
+                }
+                b = buf.get(index);
+            }
+            value |= (b & 0xffL) << (8 * i);
+        }
+        return value;
+    }
+
+    /**
+     * Retrieves many objects, decompressing each block they need only once.
+     * <p>
+     * Objects are delivered in the order they are stored, rather than the
+     * order of the collection. Compressed objects are grouped by the blocks
+     * they touch, and blocks are decompressed in ascending order, so an
+     * object is delivered as soon as its last block is decompressed.
+     *
+     * @param objects the objects to retrieve.
+     * @param handler receives the content of every object.
+     */
+    public void retrieveObjects(Collection<ChmUnitInfo> objects, ChmObjectHandler handler) {
+        ArrayList<ChmUnitInfo> sorted = new ArrayList<ChmUnitInfo>(objects.size());
+        for (ChmUnitInfo ui : objects) {
+            if (ui != null) {
+                sorted.add(ui);
+            }
+        }
+        Collections.sort(sorted, new Comparator<ChmUnitInfo>() {
+            public int compare(ChmUnitInfo a, ChmUnitInfo b) {
+                if (a.space != b.space) {
+                    return a.space < b.space ? -1 : 1;
+                }
+                return a.start < b.start ? -1 : (a.start == b.start ? 0 : 1);
+            }
+        });
+
+        try {
+            ArrayList<ChmUnitInfo> compressed = new ArrayList<ChmUnitInfo>();
+            for (ChmUnitInfo ui : sorted) {
+                if (ui.space == CHM_COMPRESSED && ui.length > 0 && !compressionDisabled) {
+                    compressed.add(ui);
+                } else {
+                    handler.handleObject(ui, retrieveObjectView(ui));
+                }
+            }
+            retrieveCompressedObjects(compressed, handler);
+        } catch (ChmStopEnumeration ignored) {
+        }
+    }
+
+    /**
+     * @param objects non-empty compressed objects, sorted by start.
+     */
+    private void retrieveCompressedObjects(ArrayList<ChmUnitInfo> objects,
+            ChmObjectHandler handler) throws ChmStopEnumeration {
+        // objects spanning blocks, being copied block by block
+        ArrayList<PartialObject> pending = new ArrayList<PartialObject>();
+        int next = 0;
+        int block = -1;
+
+        while (next < objects.size() || !pending.isEmpty()) {
+            if (pending.isEmpty()) {
+                block = (int) (objects.get(next).start / blockUncompressedLen);
+            } else {
+                block++;
+            }
+            long blockStart = (long) block * blockUncompressedLen;
+            long blockEnd = blockStart + blockUncompressedLen;
+
+            ByteBuffer buf = getBlock(block);
+            if (buf == null) {
+                // give up objects needing this block
+                for (PartialObject p : pending) {
+                    handler.handleObject(p.ui, null);
+                }
+                pending.clear();
+                while (next < objects.size() && objects.get(next).start < blockEnd) {
+                    handler.handleObject(objects.get(next++), null);
+                }
+                continue;
+            }
+
+            while (next < objects.size() && objects.get(next).start < blockEnd) {
+                ChmUnitInfo ui = objects.get(next++);
+                int offset = (int) (ui.start - blockStart);
+                if (ui.start + ui.length <= blockEnd) {
+                    ByteBuffer view = buf.duplicate();
+                    view.limit(offset + (int) ui.length);
+                    view.position(offset);
+                    view = view.asReadOnlyBuffer();
+                    view.order(ByteOrder.LITTLE_ENDIAN);
+                    handler.handleObject(ui, view);
+                } else {
+                    pending.add(new PartialObject(ui));
+                }
+            }
+
+            Iterator<PartialObject> it = pending.iterator();
+            while (it.hasNext()) {
+                PartialObject p = it.next();
+                long start = Math.max(p.ui.start, blockStart);
+                long end = Math.min(p.ui.start + p.ui.length, blockEnd);
+                if (start < end) {
+                    ByteBuffer src = buf.duplicate();
+                    src.position((int) (start - blockStart));
+                    src.limit((int) (end - blockStart));
+                    p.content.position((int) (start - p.ui.start));
+                    p.content.put(src);
+                }
+                if (end == p.ui.start + p.ui.length) {
+                    it.remove();
+                    p.content.clear();
+                    handler.handleObject(p.ui, p.content);
+                }
+            }
+        }
+    }
+
+    /**
+     * An object spanning blocks, with the part of it decompressed so far.
+     */
+    private static class PartialObject {
+
+        final ChmUnitInfo ui;
+        final ByteBuffer content;
+
+        PartialObject(ChmUnitInfo ui) {
+            this.ui = ui;
+            content = ByteBuffer.allocate((int) ui.length);
+            content.order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    /**
+     * Opens an input stream for reading an object.
+     * Unlike {@link #retrieveObject(ChmUnitInfo)}, the object is decompressed
+     * block by block as it is read, so memory use doesn't depend on its size.
+     *
+     * @param ui an abstract representation of the object.
+     * @return a stream of the content of the object, or null if ui is null.
+     */
+    public InputStream openStream(ChmUnitInfo ui) {
+        if (ui == null) {
+            return null;
+        }
+        return new ChmInputStream(this, ui);
+    }
+
+    /**
+     * Opens a channel for reading an object.
+     * Like {@link #openStream(ChmUnitInfo)}, the object is decompressed block by block.
+     * The channel is read-only, and its position can be moved anywhere in the
+     * object, which only decompresses the block at the new position.
+     *
+     * @param ui an abstract representation of the object.
+     * @return a channel of the content of the object, or null if ui is null.
+     */
+    public SeekableByteChannel openChannel(ChmUnitInfo ui) {
+        if (ui == null) {
+            return null;
+        }
+        return new ChmObjectChannel(this, ui);
+    }
+
+    /**
+     * Retrieve part of an object without copying it into a new buffer.
+     * For compressed objects, the part doesn't extend beyond the decompressed
+     * block it starts in.
+     *
+     * @param ui an abstract representation of the object.
+     * @param addr starting address(relative to start of the object)
+     * @param maxLen maximum length(in bytes) to be retrieved.
+     * @return a buffer holding the part, or null if there is error when retrieving the object,
+     * or addr is out of range.
+     */
+    ByteBuffer retrieveChunk(ChmUnitInfo ui, long addr, long maxLen) {
+        if (addr < 0 || addr >= ui.length || maxLen <= 0) {
+            return null;
+        }
+
+        long len = Math.min(maxLen, ui.length - addr);
+        if (ui.space == CHM_UNCOMPRESSED) {
+            return fetchBytes(dataOffset + ui.start + addr, len);
+        } else if (compressionDisabled) {
+            return null;
+        } else {
+            return decompressRegion(ui.start + addr, len);
+        }
+    }
+
     /**
      * Decompress a region in the CHM file.
      *
      * @param start starting offset(relative to the start of a CHM file)
      * @param len length in bytes
      */
-    private synchronized ByteBuffer decompressRegion(long start, long len) {
+    private ByteBuffer decompressRegion(long start, long len) {
         if (len <= 0) {
             return null;
         }
@@ -563,8 +1490,7 @@ public class ChmFile {
             nLen = blockUncompressedLen - nOffset;
         }
 
-        // decompress some data
-        ByteBuffer buf = decompressBlock(nBlock);
+        ByteBuffer buf = getBlock(nBlock, nOffset + nLen);
         if (buf == null) {
             return null;
         }
@@ -576,46 +1502,214 @@ public class ChmFile {
     }
 
     /**
-     * Decompress a block.
+     * Gets a decompressed block, from the content cache or the block cache if possible.
+     *
+     * @return a duplicate of the block, or null if there is error when decompressing.
      */
-    private synchronized ByteBuffer decompressBlock(int block) {
-        int blockAlign = block % resetBlockCount; // reset interval align
-
-        // check if we need previous blocks
-        if (blockAlign != 0) {
-            // fetch all required previous blocks since last reset
-            for (int i = blockAlign; i > 0; i--) {
-                int curBlockIdx = block - i;
+    private ByteBuffer getBlock(int block) {
+        return getBlock(block, blockUncompressedLen);
+    }
 
-                if ((curBlockIdx % resetBlockCount) == 0) {
-                    lzxInflator.reset();
-                }
+    /**
+     * Gets the beginning of a decompressed block, at least minLen bytes of it.
+     * For small reads, the block is only decompressed as far as needed,
+     * and the rest of it later if needed.
+     *
+     * @return a duplicate of the block, or of its beginning,
+     * or null if there is error when decompressing.
+     */
+    private ByteBuffer getBlock(int block, int minLen) {
+        if (resetTable == null || block < 0 || block >= resetTable.length - 1) {
+            return null;
+        }
+        ChmStorage content = getContent();
+        if (content != null) {
+            try {
+                return content.fetch((long) block * blockUncompressedLen, blockUncompressedLen);
+            } catch (IOException e) {
+                LOG.fine("Failed to read content cache: " + e);
+            }
+        }
+        if (readahead != null) {
+            readahead.access(block);
+        }
+        ByteBuffer buf = blockCache.get(block);
+        if (buf == null) {
+            if (minLen > blockUncompressedLen / PARTIAL_DECODE_DIVISOR) {
+                minLen = blockUncompressedLen;
+            }
+            buf = decompressBlock(block, minLen, true);
+        }
+        return buf;
+    }
 
-                ByteBuffer buf0 = fetchBytes(resetTable[curBlockIdx],
-                        resetTable[curBlockIdx + 1] - resetTable[curBlockIdx]);
-                if (buf0 == null) {
-                    return null;
-                }
-                // this is necessary!
-                lzxInflator.decompress(buf0, blockUncompressedLen);
+    /**
+     * Gets a decompressed block from the block cache, or decompresses at least
+     * minLen bytes of it. The buffer may be the one in the block cache,
+     * so it should only be read with absolute gets.
+     */
+    private ByteBuffer getSharedBlock(int block, int minLen) throws IOException {
+        if (resetTable == null || block < 0 || block >= resetTable.length - 1) {
+            throw new IOException("Invalid block " + block);
+        }
+        if (readahead != null) {
+            readahead.access(block);
+        }
+        ByteBuffer buf = blockCache.getShared(block);
+        if (buf == null) {
+            if (minLen > blockUncompressedLen / PARTIAL_DECODE_DIVISOR) {
+                minLen = blockUncompressedLen;
             }
-        } else {
-            if ((block % resetBlockCount) == 0) {
-                lzxInflator.reset();
+            buf = decompressBlock(block, Math.min(minLen, blockUncompressedLen), true);
+            if (buf == null) {
+                throw new IOException("Failed to decompress block " + block);
             }
         }
+        return buf;
+    }
 
-        ByteBuffer buf0 = fetchBytes(resetTable[block],
-                resetTable[block + 1] - resetTable[block]);
-        if (buf0 == null) {
+    /**
+     * @return true if the block doesn't have to be decompressed to be read.
+     */
+    boolean isBlockCached(int block) {
+        return getContent() != null || blockCache.contains(block);
+    }
+
+    /**
+     * Decompresses a block ahead of time, into the block cache.
+     */
+    void prefetchBlock(int block) {
+        if (!isBlockCached(block)) {
+            decompressBlock(block, blockUncompressedLen, false);
+        }
+    }
+
+    /**
+     * @return the decompressed content section, or null if it is not cached.
+     */
+    private ChmStorage getContent() {
+        return contentCache == null ? null : contentCache.getStorage();
+    }
+
+    /**
+     * Decompress a block, or at least its first minLen bytes.
+     * Blocks decompressed along the way are added to the block cache.
+     *
+     * @param read whether the block is decompressed because it is read,
+     * rather than ahead of time.
+     * @return a duplicate of the decompressed block, or of its beginning.
+     */
+    private ByteBuffer decompressBlock(int block, int minLen, boolean read) {
+        int intervalStart = block - block % resetBlockCount; // reset interval align
+
+        LZXInflatorPool.Entry entry;
+        try {
+            entry = inflatorPool.acquire(block, intervalStart);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             return null;
         }
 
-        return lzxInflator.decompress(buf0, blockUncompressedLen);
+        try {
+            // the block may have been decompressed while we were waiting
+            ByteBuffer buf = blockCache.peek(block);
+            if (buf != null) {
+                return buf;
+            }
+
+            // fetch all required previous blocks since last reset,
+            // unless the inflator is already positioned in this interval,
+            // or we can resume from a checkpoint nearer to the block.
+            int curBlockIdx = entry.nextBlock;
+            if (curBlockIdx < intervalStart || curBlockIdx > block) {
+                curBlockIdx = intervalStart;
+            }
+            byte[] partialBlock = curBlockIdx == entry.nextBlock ? entry.partialBlock : null;
+            entry.nextBlock = -1;
+            entry.partialBlock = null;
+
+            int checkpoint = checkpoints.findNearest(block, curBlockIdx);
+            if (checkpoint > 0) {
+                LZXInflator.State state = checkpoints.get(checkpoint);
+                if (state != null && entry.inflator.restoreState(state)) {
+                    curBlockIdx = checkpoint;
+                    partialBlock = null;
+                } else if (curBlockIdx != intervalStart) {
+                    // the inflator may have been changed
+                    curBlockIdx = intervalStart;
+                    partialBlock = null;
+                }
+            }
+
+            for (; curBlockIdx <= block; curBlockIdx++) {
+                int needed = curBlockIdx == block ? minLen : blockUncompressedLen;
+                boolean stepped = partialBlock != null || needed < blockUncompressedLen;
+                byte[] out;
+                int done;
+                if (partialBlock != null) {
+                    // continue the block decompressed in part last time
+                    out = partialBlock;
+                    partialBlock = null;
+                    done = entry.inflator.resume(needed);
+                } else {
+                    if ((curBlockIdx % resetBlockCount) == 0) {
+                        entry.inflator.reset();
+                    }
+
+                    ByteBuffer buf0 = fetchBytes(resetTable[curBlockIdx],
+                            resetTable[curBlockIdx + 1] - resetTable[curBlockIdx]);
+                    if (buf0 == null) {
+                        return null;
+                    }
+                    out = new byte[blockUncompressedLen];
+                    if (needed < blockUncompressedLen) {
+                        done = entry.inflator.decompressPartially(buf0, out, 0,
+                                blockUncompressedLen, needed);
+                    } else {
+                        done = entry.inflator.decompress(buf0, out, 0, blockUncompressedLen) ?
+                                blockUncompressedLen : -1;
+                    }
+                }
+                if (done < 0 && stepped) {
+                    // some data can only be decompressed a whole block at a time,
+                    // start over from the reset interval.
+                    minLen = blockUncompressedLen;
+                    curBlockIdx = intervalStart - 1;
+                    continue;
+                }
+                if (done < 0) {
+                    return null;
+                }
+                buf = ByteBuffer.wrap(out);
+                buf.order(ByteOrder.LITTLE_ENDIAN);
+                if (done < blockUncompressedLen) {
+                    // the decompressed part won't change, so it can be shared
+                    entry.nextBlock = curBlockIdx;
+                    entry.partialBlock = out;
+                    buf.limit(done);
+                    return buf;
+                }
+                if (read && curBlockIdx == block) {
+                    blockCache.putRead(curBlockIdx, buf);
+                } else {
+                    blockCache.put(curBlockIdx, buf);
+                }
+                entry.nextBlock = curBlockIdx + 1;
+
+                if ((curBlockIdx + 1) % resetBlockCount != 0 &&
+                        checkpoints.wants(curBlockIdx + 1, intervalStart)) {
+                    checkpoints.put(curBlockIdx + 1, entry.inflator.saveState());
+                }
+            }
+
+            return buf.duplicate();
+        } finally {
+            inflatorPool.release(entry);
+        }
     }
 
-    private boolean unitTypeMatched(ChmUnitInfo ui, int typeBits, int filterBits) {
-        return (typeBits & ui.flags) != 0 && !(filterBits != 0 && (filterBits & ui.flags) == 0);
+    private boolean unitTypeMatched(int flags, int typeBits, int filterBits) {
+        return (typeBits & flags) != 0 && !(filterBits != 0 && (filterBits & flags) == 0);
     }
 
     /**
@@ -633,9 +1727,6 @@ public class ChmFile {
      * in C/C++).
      */
     public void enumerateDir(String prefix, int what, ChmEnumerator e) {
-        // set to true once we've started
-        boolean it_has_begun = false;
-
         int type_bits = (what & 0x7);
         int filter_bits = (what & 0xF8);
 
@@ -644,41 +1735,10 @@ public class ChmFile {
             prefix += "/";
         }
 
-        String lastPath = null;
-
-        for (ChmUnitInfo ui : dirMap.values()) {
-            //check if we should start
-            if (!it_has_begun) {
-                if (ui.path.startsWith(prefix)) {
-                    it_has_begun = true;
-                    if (ui.path.equals(prefix)) {
-                        continue;
-                    }
-                } else {
-                    continue;
-                }
-            }
-            // check if we should stop
-            else if (!ui.path.startsWith(prefix)) {
-                return;
-            }
-
-            // check if we should include this path
-            if (lastPath != null && ui.path.startsWith(lastPath)) {
-                continue;
-            }
-
-            String title = ui.path.substring(prefix.length());
-            int index = title.indexOf("/");
-            if (index > 0 && index < title.length() - 1) {
-                // not a direct child dir/file under prefix
-                // create a fake ui for the direct child dir
-                ui = new ChmUnitInfo(ui.path.substring(0, prefix.length() + index + 1));
-            }
-
-            lastPath = ui.path;
-
-            if (unitTypeMatched(ui, type_bits, filter_bits)) {
+        ChmDirectoryTree tree = loadDirectoryTree();
+        for (int child : tree.getChildren(prefix)) {
+            ChmUnitInfo ui = tree.getChild(child);
+            if (unitTypeMatched(ui.flags, type_bits, filter_bits)) {
                 // call the enumerator
                 try {
                     e.enumerate(ui);
@@ -695,23 +1755,36 @@ public class ChmFile {
      * @param what types of objects to be enumerated. could be one of(or the combination of) the
      * following: <ul> <li>CHM_ENUMERATE_NORMAL,</li> <li>CHM_ENUMERATE_META,</li>
      * <li>CHM_ENUMERATE_SPECIAL,</li> <li>CHM_ENUMERATE_FILES,</li> <li>CHM_ENUMERATE_DIRS,</li>
-     * <li>CHM_ENUMERATE_ALL,</li> <li>CHM_ENUMERATE_USER.</li> </ul>
+     * <li>CHM_ENUMERATE_ALL,</li> <li>CHM_ENUMERATE_USER,</li> </ul> optionally combined with
+     * CHM_ENUMERATE_STORAGE_ORDER.
      * @param e the enumerator which does something on the enumerated objects(like callback function
      * in C/C++).
      */
     public void enumerate(int what, ChmEnumerator e) {
 
         int type_bits = (what & 0x7);
-        int filter_bits = (what & 0xF8);
-
-        for (ChmUnitInfo ui : dirMap.values()) {
-            if (unitTypeMatched(ui, type_bits, filter_bits)) {
-                // call the enumerator
-                try {
-                    e.enumerate(ui);
-                } catch (ChmStopEnumeration ignored) {
-                    break;
+        int filter_bits = (what & 0x18);
+
+        ChmDirectory dir = loadDirectory();
+        int[] order = (what & CHM_ENUMERATE_STORAGE_ORDER) != 0 ? dir.getStorageOrder() : null;
+        // "/@contents" is enumerated again, after the first .hhc file,
+        // or after itself in storage order.
+        int contentsPosition = order == null ? dir.getContentsPosition()
+                : dir.getContentsIndex();
+        boolean contentsMatched = contentsPosition >= 0 &&
+                unitTypeMatched(dir.getFlags(dir.getContentsIndex()), type_bits, filter_bits);
+        for (int k = 0; k < dir.size(); k++) {
+            int i = order == null ? k : order[k];
+            try {
+                if (unitTypeMatched(dir.getFlags(i), type_bits, filter_bits)) {
+                    // call the enumerator
+                    e.enumerate(dir.get(i));
                 }
+                if (i == contentsPosition && contentsMatched) {
+                    e.enumerate(dir.getContents());
+                }
+            } catch (ChmStopEnumeration ignored) {
+                break;
             }
         }
     }
@@ -726,7 +1799,7 @@ public class ChmFile {
             return tree;
         }
 
-        ChmUnitInfo ui = resolveObject("/@contents");
+        ChmUnitInfo ui = resolveObject(CONTENTS_PATH);
         if (ui == null) {
             return null;
         }
@@ -869,13 +1942,13 @@ public class ChmFile {
 
     private ByteBuffer fetchBytesWithoutCatch(long offset, long len)
             throws IllegalArgumentException, IOException {
-        ByteBuffer buf = rf.getChannel().map(
-                FileChannel.MapMode.READ_ONLY, offset, len);
-        buf.order(ByteOrder.LITTLE_ENDIAN);
-        return buf;
+        if (len < 0 || len > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid length " + len);
+        }
+        return storage.fetch(offset, (int) len);
     }
 
-    private synchronized ByteBuffer fetchBytesOrFail(long offset, long len, String exceptionMessage)
+    private ByteBuffer fetchBytesOrFail(long offset, long len, String exceptionMessage)
             throws IOException {
         try {
             return fetchBytesWithoutCatch(offset, len);
@@ -889,7 +1962,7 @@ public class ChmFile {
 
     }
 
-    private synchronized ByteBuffer fetchBytes(long offset, long len) {
+    private ByteBuffer fetchBytes(long offset, long len) {
         try {
             return fetchBytesWithoutCatch(offset, len);
         } catch (Exception e) {
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2017 chimenchen. All rights reserved.
+ */
+
+package org.jchmlib;
+
+import java.io.File;
+
+/**
+ * Options controlling how a {@link ChmFile} is opened.
+ */
+@SuppressWarnings("WeakerAccess")
+public class ChmFileOptions {
+
+    /**
+     * Default maximum total size (in bytes) of the files in the content cache directory.
+     */
+    public final static long DEFAULT_CONTENT_CACHE_BUDGET = 1024L * 1024 * 1024;
+    /**
+     * Default number of blocks decompressed ahead of sequential reads.
+     */
+    public final static int DEFAULT_READAHEAD_DEPTH = 4;
+
+    private boolean memoryMapped = true;
+    private boolean fastLzxDecoding = false;
+    private boolean lazyDirectory = false;
+    private File sidecarDirectory = null;
+    private boolean parallelDirectory = true;
+    private File contentCacheDirectory = null;
+    private long contentCacheBudget = DEFAULT_CONTENT_CACHE_BUDGET;
+    private int readaheadDepth = DEFAULT_READAHEAD_DEPTH;
+    private ChmSharedBlockCache sharedBlockCache = null;
+
+    /**
+     * @return true if the CHM file is memory mapped, false if it is read
+     * with positional reads.
+     */
+    public boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+
+    /**
+     * Chooses how the CHM file is accessed.
+     * <p>
+     * When true (the default), the file is mapped into memory once when opened,
+     * in segments if it is larger than 2GB. When false, or when mapping fails,
+     * bytes are read with positional reads on the file channel.
+     */
+    public ChmFileOptions setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+        return this;
+    }
+
+    /**
+     * @return true if the fast LZX decoder is used.
+     */
+    public boolean isFastLzxDecoding() {
+        return fastLzxDecoding;
+    }
+
+    /**
+     * Chooses between the fast LZX decoder and the original one (the default),
+     * see {@link LZXInflator#setFastDecoding(boolean)}.
+     */
+    public ChmFileOptions setFastLzxDecoding(boolean fastLzxDecoding) {
+        this.fastLzxDecoding = fastLzxDecoding;
+        return this;
+    }
+
+    /**
+     * @return true if the directory is read lazily.
+     */
+    public boolean isLazyDirectory() {
+        return lazyDirectory;
+    }
+
+    /**
+     * Chooses when the directory of the CHM file is read.
+     * <p>
+     * By default, the whole directory is read when the file is opened.
+     * When true, {@link ChmFile#resolveObject(String)} searches the directory
+     * B-tree on demand instead, and the whole directory is read only when
+     * objects are first enumerated. It makes opening large CHM files faster.
+     */
+    public ChmFileOptions setLazyDirectory(boolean lazyDirectory) {
+        this.lazyDirectory = lazyDirectory;
+        return this;
+    }
+
+    /**
+     * @return the directory of sidecar files, or null if they are disabled.
+     */
+    public File getSidecarDirectory() {
+        return sidecarDirectory;
+    }
+
+    /**
+     * Enables sidecar files, which are disabled by default.
+     * <p>
+     * A sidecar file holds the parsed directory, reset table and metadata of
+     * a CHM file. It is saved the first time the CHM file is opened, and used
+     * when it is opened again, as long as the CHM file is not modified,
+     * so that reopening it takes only a few reads. If the directory is read
+     * lazily, the sidecar is saved once the whole directory is read.
+     *
+     * @param sidecarDirectory where sidecar files are saved, or null to disable them.
+     */
+    public ChmFileOptions setSidecarDirectory(File sidecarDirectory) {
+        this.sidecarDirectory = sidecarDirectory;
+        return this;
+    }
+
+    /**
+     * @return true if the directory may be read on multiple threads.
+     */
+    public boolean isParallelDirectory() {
+        return parallelDirectory;
+    }
+
+    /**
+     * Chooses whether the pages of a large directory are parsed concurrently
+     * when the whole directory is read, on a shared pool of daemon threads,
+     * one per processor. It is enabled by default.
+     */
+    public ChmFileOptions setParallelDirectory(boolean parallelDirectory) {
+        this.parallelDirectory = parallelDirectory;
+        return this;
+    }
+
+    /**
+     * @return the directory of the content cache, or null if it is disabled.
+     */
+    public File getContentCacheDirectory() {
+        return contentCacheDirectory;
+    }
+
+    /**
+     * Enables the content cache, which is disabled by default.
+     * <p>
+     * When enabled, the whole compressed content section of the CHM file is
+     * decompressed in the background into a file in the given directory.
+     * Once it is done, compressed objects are read from that file without
+     * decompressing them, now and when the CHM file is opened again, as long
+     * as the CHM file is not modified. It is meant for CHM files read a lot,
+     * e.g. by a server.
+     *
+     * @param contentCacheDirectory where decompressed content is saved, or null to
+     * disable the content cache.
+     */
+    public ChmFileOptions setContentCacheDirectory(File contentCacheDirectory) {
+        this.contentCacheDirectory = contentCacheDirectory;
+        return this;
+    }
+
+    /**
+     * @return the maximum total size (in bytes) of the content cache directory.
+     */
+    public long getContentCacheBudget() {
+        return contentCacheBudget;
+    }
+
+    /**
+     * Sets the maximum total size (in bytes) of the files in the content cache
+     * directory, {@link #DEFAULT_CONTENT_CACHE_BUDGET} by default. Least recently
+     * opened files are deleted to keep within it, and the content of CHM files
+     * larger than it is not cached.
+     */
+    public ChmFileOptions setContentCacheBudget(long contentCacheBudget) {
+        this.contentCacheBudget = contentCacheBudget;
+        return this;
+    }
+
+    /**
+     * @return the number of blocks decompressed ahead of sequential reads.
+     */
+    public int getReadaheadDepth() {
+        return readaheadDepth;
+    }
+
+    /**
+     * Sets how many blocks are decompressed ahead of sequential reads,
+     * {@link #DEFAULT_READAHEAD_DEPTH} by default, 0 to disable readahead.
+     * <p>
+     * When blocks are read one after another, e.g. when a large object is
+     * streamed or all objects are read in storage order, the next blocks are
+     * decompressed on a shared pool of daemon threads and put into the block
+     * cache, which should be large enough to hold them.
+     */
+    public ChmFileOptions setReadaheadDepth(int readaheadDepth) {
+        this.readaheadDepth = readaheadDepth;
+        return this;
+    }
+
+    /**
+     * @return the block cache shared with other CHM files, or null if the CHM
+     * file has its own.
+     */
+    public ChmSharedBlockCache getSharedBlockCache() {
+        return sharedBlockCache;
+    }
+
+    /**
+     * Makes the CHM file cache its decompressed blocks in a cache shared with
+     * other CHM files, instead of its own, so that many open CHM files can be
+     * kept within one memory limit. Its blocks are removed from the shared
+     * cache when it is closed.
+     *
+     * @param sharedBlockCache the shared cache, or null for a cache of its own
+     * (the default).
+     */
+    public ChmFileOptions setSharedBlockCache(ChmSharedBlockCache sharedBlockCache) {
+        this.sharedBlockCache = sharedBlockCache;
+        return this;
+    }
+}
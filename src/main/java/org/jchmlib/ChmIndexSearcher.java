@@ -57,7 +57,7 @@ public class ChmIndexSearcher extends AbstractIndexSearcher {
             return;
         }
 
-        ByteBuffer bufFtsHeader = chmFile.retrieveObject(uiMain, 0, ChmFile.FTS_HEADER_LEN);
+        ByteBuffer bufFtsHeader = chmFile.retrieveObjectView(uiMain, 0, ChmFile.FTS_HEADER_LEN);
         if (bufFtsHeader == null) {
             LOG.info("Failed to get FTS header");
             notSearchable = true;
@@ -145,7 +145,7 @@ public class ChmIndexSearcher extends AbstractIndexSearcher {
         WordBuilder wordBuilder = createWordBuilder();
         do {
             // get a leaf node here
-            ByteBuffer bufLeafNode = chmFile.retrieveObject(uiMain, nodeOffset, ftsHeader.nodeLen);
+            ByteBuffer bufLeafNode = chmFile.retrieveObjectView(uiMain, nodeOffset, ftsHeader.nodeLen);
             if (bufLeafNode == null) {
                 return;
             }
@@ -220,7 +220,7 @@ public class ChmIndexSearcher extends AbstractIndexSearcher {
 
             lastNodeOffset = nodeOffset;
 
-            ByteBuffer bufIndexNode = chmFile.retrieveObject(uiMain, nodeOffset, buffSize);
+            ByteBuffer bufIndexNode = chmFile.retrieveObjectView(uiMain, nodeOffset, buffSize);
             if (bufIndexNode == null) {
                 return 0;
             }
@@ -264,7 +264,7 @@ public class ChmIndexSearcher extends AbstractIndexSearcher {
 
     private void ProcessWlcBlockWithoutCatch(long wlcCount, long wlcSize, int wlcOffset,
             List<SearchResult> results) throws IOException {
-        ByteBuffer bufWlcBlock = chmFile.retrieveObject(uiMain, wlcOffset, wlcSize);
+        ByteBuffer bufWlcBlock = chmFile.retrieveObjectView(uiMain, wlcOffset, wlcSize);
         if (bufWlcBlock == null) {
             LOG.fine("Can't retrieve object:" + uiMain.path);
             return;
@@ -287,31 +287,20 @@ public class ChmIndexSearcher extends AbstractIndexSearcher {
                 lastLocationCode = locationCode;
             }
 
-            ByteBuffer entry = chmFile.retrieveObject(uiTopics, docIndex * 16, 16);
-            if (entry == null) {
-                LOG.fine("Can't retrieve object:" + uiTopics.path);
-                return;
-            }
-            entry.getInt();
-            int strOffset = entry.getInt();
-            int urlOffset = entry.getInt();
+            int strOffset = chmFile.readInt(uiTopics, docIndex * 16 + 4);
+            int urlOffset = chmFile.readInt(uiTopics, docIndex * 16 + 8);
 
             String topic;
-            ByteBuffer bufStrings = chmFile.retrieveObject(uiStrings, strOffset, 1024);
+            ByteBuffer bufStrings = chmFile.retrieveObjectView(uiStrings, strOffset, 1024);
             if (bufStrings == null) {
                 topic = null;
             } else {
                 topic = ByteBufferHelper.parseString(bufStrings, chmFile.encoding);
             }
 
-            ByteBuffer bufUrlTable = chmFile.retrieveObject(uiUrlTbl, urlOffset, 12);
-            if (bufUrlTable == null) {
-                return;
-            }
-            ByteBufferHelper.skip(bufUrlTable, 8); // bufUrlTable.getInt(); // bufUrlTable.getInt();
-            int urlStrOffset = bufUrlTable.getInt();
+            int urlStrOffset = chmFile.readInt(uiUrlTbl, urlOffset + 8);
 
-            ByteBuffer bufUrlStr = chmFile.retrieveObject(uiUrlStr, urlStrOffset + 8, 1024);
+            ByteBuffer bufUrlStr = chmFile.retrieveObjectView(uiUrlStr, urlStrOffset + 8, 1024);
             if (bufUrlStr == null) {
                 return;
             }
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2017 chimenchen. All rights reserved.
+ */
+
+package org.jchmlib;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An input stream reading the content of an object in a CHM file.
+ * Compressed content is decompressed one block at a time.
+ *
+ * @see ChmFile#openStream(ChmUnitInfo)
+ */
+class ChmInputStream extends InputStream {
+
+    /**
+     * Maximum number of bytes fetched at a time for uncompressed objects.
+     */
+    static final int CHUNK_SIZE = 0x10000;
+
+    private final ChmFile chmFile;
+    private final ChmUnitInfo ui;
+    private long position = 0;
+    private ByteBuffer chunk = null;
+    private boolean closed = false;
+
+    ChmInputStream(ChmFile chmFile, ChmUnitInfo ui) {
+        this.chmFile = chmFile;
+        this.ui = ui;
+    }
+
+    /**
+     * Makes sure the current chunk has something to read.
+     *
+     * @return false at the end of the object.
+     */
+    private boolean fill() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (chunk != null && chunk.hasRemaining()) {
+            return true;
+        }
+        if (position >= ui.length) {
+            return false;
+        }
+
+        chunk = chmFile.retrieveChunk(ui, position, CHUNK_SIZE);
+        if (chunk == null || !chunk.hasRemaining()) {
+            throw new IOException("Failed to read " + ui.path + " at " + position);
+        }
+        position += chunk.remaining();
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return chunk.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return 0;
+        }
+
+        int numRead = 0;
+        while (numRead < len && fill()) {
+            int n = Math.min(len - numRead, chunk.remaining());
+            chunk.get(b, off + numRead, n);
+            numRead += n;
+        }
+        return numRead == 0 ? -1 : numRead;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (n <= 0) {
+            return 0;
+        }
+
+        long available = chunk == null ? 0 : chunk.remaining();
+        if (n <= available) {
+            chunk.position(chunk.position() + (int) n);
+            return n;
+        }
+
+        // drop the current chunk, and skip the rest without reading it
+        long skipped = Math.min(n, available + ui.length - position);
+        position += skipped - available;
+        chunk = null;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        return chunk == null ? 0 : chunk.remaining();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        chunk = null;
+    }
+}
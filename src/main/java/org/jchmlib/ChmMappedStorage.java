@@ -0,0 +1,111 @@
+/*
+ * Copyright 2017 chimenchen. All rights reserved.
+ */
+
+package org.jchmlib;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * A CHM file mapped into memory once, and served as read-only slices of the mapping.
+ * <p>
+ * Files of up to 2GB are mapped as a whole. Larger files are mapped in segments
+ * of {@link #SEGMENT_SIZE} bytes, each overlapping the next one by
+ * {@link #SEGMENT_OVERLAP} bytes, so that a range rarely spans two segments.
+ * Ranges that do are copied into a new buffer.
+ */
+class ChmMappedStorage extends ChmStorage {
+
+    static final long SEGMENT_SIZE = 1L << 30;
+    static final long SEGMENT_OVERLAP = 1L << 24;
+
+    private final FileChannel channel;
+    private final long size;
+    private final long segmentSize;
+    private final ByteBuffer[] segments;
+
+    ChmMappedStorage(FileChannel channel) throws IOException {
+        this.channel = channel;
+        size = channel.size();
+
+        if (size <= Integer.MAX_VALUE) {
+            segmentSize = size;
+            segments = new ByteBuffer[]{
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, size)};
+        } else {
+            segmentSize = SEGMENT_SIZE;
+            int count = (int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+            segments = new ByteBuffer[count];
+            for (int i = 0; i < count; i++) {
+                long start = i * SEGMENT_SIZE;
+                long len = Math.min(SEGMENT_SIZE + SEGMENT_OVERLAP, size - start);
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, len);
+            }
+        }
+    }
+
+    @Override
+    long size() {
+        return size;
+    }
+
+    @Override
+    ByteBuffer fetch(long offset, int len) throws IOException {
+        checkRange(offset, len);
+
+        int index = getSegmentIndex(offset);
+        ByteBuffer segment = segments[index];
+        long offsetInSegment = offset - index * segmentSize;
+        if (offsetInSegment + len <= segment.capacity()) {
+            ByteBuffer buf = segment.duplicate();
+            buf.position((int) offsetInSegment);
+            buf.limit((int) offsetInSegment + len);
+            buf = buf.slice();
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            return buf;
+        }
+
+        // spans two or more segments
+        ByteBuffer buf = ByteBuffer.allocate(len);
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        while (buf.hasRemaining()) {
+            ByteBuffer src = fetch(offset + buf.position(),
+                    (int) Math.min(buf.remaining(),
+                            segmentSize - (offset + buf.position()) % segmentSize));
+            buf.put(src);
+        }
+        buf.flip();
+        return buf;
+    }
+
+    @Override
+    byte get(long offset) throws IOException {
+        checkRange(offset, 1);
+        int index = getSegmentIndex(offset);
+        return segments[index].get((int) (offset - index * segmentSize));
+    }
+
+    @Override
+    void read(long offset, ByteBuffer dst, int len) throws IOException {
+        checkRange(offset, len);
+        int index = getSegmentIndex(offset);
+        long offsetInSegment = offset - index * segmentSize;
+        if (offsetInSegment + len <= segments[index].capacity()) {
+            ByteBufferHelper.copy(segments[index], (int) offsetInSegment, dst, len);
+        } else {
+            super.read(offset, dst, len);
+        }
+    }
+
+    private int getSegmentIndex(long offset) {
+        return segmentSize == 0 ? 0 : (int) Math.min(offset / segmentSize, segments.length - 1);
+    }
+
+    public void close() throws IOException {
+        // mappings are released when they are garbage collected
+        channel.close();
+    }
+}
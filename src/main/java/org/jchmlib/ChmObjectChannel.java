@@ -0,0 +1,127 @@
+/*
+ * Copyright 2017 chimenchen. All rights reserved.
+ */
+
+package org.jchmlib;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * A channel reading the content of an object in a CHM file.
+ * Compressed content is decompressed one block at a time.
+ * <p>
+ * Moving the position within the current block doesn't read anything.
+ * Moving it elsewhere only decompresses the block at the new position,
+ * starting from the nearest reset point or checkpoint, or takes it from
+ * the block cache.
+ *
+ * @see ChmFile#openChannel(ChmUnitInfo)
+ */
+class ChmObjectChannel implements SeekableByteChannel {
+
+    private final ChmFile chmFile;
+    private final ChmUnitInfo ui;
+    /**
+     * Position of the next byte to read, which is the current position
+     * of the chunk, if there is one.
+     */
+    private long position = 0;
+    private ByteBuffer chunk = null;
+    /**
+     * Position of the first byte of the chunk, and its index in the chunk.
+     */
+    private long chunkStart = 0;
+    private int chunkOffset = 0;
+    private boolean open = true;
+
+    ChmObjectChannel(ChmFile chmFile, ChmUnitInfo ui) {
+        this.chmFile = chmFile;
+        this.ui = ui;
+    }
+
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+
+        int numRead = 0;
+        while (dst.hasRemaining()) {
+            if (chunk == null || !chunk.hasRemaining()) {
+                if (position >= ui.length) {
+                    break;
+                }
+                chunk = chmFile.retrieveChunk(ui, position, ChmInputStream.CHUNK_SIZE);
+                if (chunk == null || !chunk.hasRemaining()) {
+                    chunk = null;
+                    throw new IOException("Failed to read " + ui.path + " at " + position);
+                }
+                chunkStart = position;
+                chunkOffset = chunk.position();
+            }
+
+            int n = Math.min(dst.remaining(), chunk.remaining());
+            ByteBuffer src = chunk.duplicate();
+            src.limit(src.position() + n);
+            dst.put(src);
+            chunk.position(chunk.position() + n);
+            position += n;
+            numRead += n;
+        }
+
+        if (numRead == 0 && position >= ui.length && dst.hasRemaining()) {
+            return -1;
+        }
+        return numRead;
+    }
+
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    public synchronized long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Negative position " + newPosition);
+        }
+        ensureOpen();
+
+        if (chunk != null && newPosition >= chunkStart &&
+                newPosition - chunkStart < chunk.limit() - chunkOffset) {
+            chunk.position(chunkOffset + (int) (newPosition - chunkStart));
+        } else {
+            chunk = null;
+        }
+        position = newPosition;
+        return this;
+    }
+
+    public synchronized long size() throws IOException {
+        ensureOpen();
+        return ui.length;
+    }
+
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    public synchronized void close() {
+        open = false;
+        chunk = null;
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+}
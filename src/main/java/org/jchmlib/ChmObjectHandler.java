@@ -0,0 +1,28 @@
+/*
+ * Copyright 2017 chimenchen. All rights reserved.
+ */
+
+package org.jchmlib;
+
+import java.nio.ByteBuffer;
+
+/**
+ * ChmObjectHandler receives the content of objects retrieved by
+ * {@link ChmFile#retrieveObjects(java.util.Collection, ChmObjectHandler)}.
+ *
+ * @see ChmFile
+ * @see ChmUnitInfo
+ */
+public interface ChmObjectHandler {
+
+    /**
+     * Does something on the content of a CHM unit.
+     *
+     * @param ui a requested CHM unit.
+     * @param content the content of the unit, as returned by
+     * {@link ChmFile#retrieveObjectView(ChmUnitInfo)}, or null if it can't be retrieved.
+     * It may be a view of shared data, so it should not be modified.
+     * @throws ChmStopEnumeration throw it to end retrieval.
+     */
+    void handleObject(ChmUnitInfo ui, ByteBuffer content) throws ChmStopEnumeration;
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2017 chimenchen. All rights reserved.
+ */
+
+package org.jchmlib;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * ChmReadahead detects sequential reads of decompressed blocks, and
+ * decompresses the next blocks ahead of time on a shared pool of daemon
+ * threads, so that they are in the block cache when they are read.
+ * <p>
+ * Reads are sequential when a block follows the last block of a stream.
+ * A few streams are tracked at a time, so interleaved readers are
+ * detected separately. Blocks of a CHM file are decompressed one after
+ * another, in the order they are requested, since blocks in a reset
+ * interval have to be decompressed in order anyway.
+ */
+class ChmReadahead {
+
+    private final static Logger LOG = Logger.getLogger(ChmReadahead.class.getName());
+    /**
+     * Number of sequential streams tracked at a time.
+     */
+    private final static int STREAMS = 8;
+    private final static int THREADS = Runtime.getRuntime().availableProcessors();
+
+    private static ExecutorService executor;
+
+    private final ChmFile chmFile;
+    private final int blockCount;
+    private int depth;
+    /**
+     * The last block read by each stream, and when it was read.
+     */
+    private final int[] lastBlocks = new int[STREAMS];
+    private final long[] lastUsed = new long[STREAMS];
+    private long useCounter = 0;
+    /**
+     * Blocks waiting to be decompressed, and those being decompressed.
+     */
+    private final ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+    private final HashSet<Integer> pending = new HashSet<Integer>();
+    private boolean running = false;
+    private boolean closed = false;
+    /**
+     * The block being decompressed, or null.
+     */
+    private Integer current = null;
+
+    /**
+     * @param chmFile the CHM file, see {@link ChmFile#prefetchBlock(int)}.
+     * @param blockCount number of blocks in the CHM file.
+     * @param depth number of blocks to decompress ahead of a sequential read.
+     */
+    ChmReadahead(ChmFile chmFile, int blockCount, int depth) {
+        this.chmFile = chmFile;
+        this.blockCount = blockCount;
+        this.depth = Math.max(depth, 0);
+        for (int i = 0; i < STREAMS; i++) {
+            lastBlocks[i] = -1;
+        }
+    }
+
+    synchronized int getDepth() {
+        return depth;
+    }
+
+    synchronized void setDepth(int depth) {
+        this.depth = Math.max(depth, 0);
+        if (this.depth == 0) {
+            queue.clear();
+        }
+    }
+
+    /**
+     * Records a read of a block, and if it continues a stream, schedules
+     * the next blocks of the stream.
+     */
+    synchronized void access(int block) {
+        if (closed || depth == 0) {
+            return;
+        }
+
+        int stream = -1;
+        int leastRecentlyUsed = 0;
+        for (int i = 0; i < STREAMS; i++) {
+            if (lastBlocks[i] == block) {
+                // more of the same block, already scheduled
+                lastUsed[i] = ++useCounter;
+                return;
+            }
+            if (lastBlocks[i] == block - 1 && block > 0) {
+                stream = i;
+            }
+            if (lastUsed[i] < lastUsed[leastRecentlyUsed]) {
+                leastRecentlyUsed = i;
+            }
+        }
+        if (stream < 0) {
+            // not sequential (yet), start a new stream
+            lastBlocks[leastRecentlyUsed] = block;
+            lastUsed[leastRecentlyUsed] = ++useCounter;
+            return;
+        }
+        lastBlocks[stream] = block;
+        lastUsed[stream] = ++useCounter;
+
+        int end = Math.min(block + depth, blockCount - 1);
+        for (int next = block + 1; next <= end; next++) {
+            if (!pending.contains(next) && !chmFile.isBlockCached(next)) {
+                pending.add(next);
+                queue.add(next);
+            }
+        }
+        if (!running && !queue.isEmpty()) {
+            running = true;
+            getExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            });
+        }
+    }
+
+    /**
+     * Stops decompressing blocks ahead of time, and waits for the block being
+     * decompressed, so that the CHM file is no longer used once it returns.
+     */
+    synchronized void close() {
+        closed = true;
+        queue.clear();
+        boolean interrupted = false;
+        while (current != null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Decompresses queued blocks, until there are none left.
+     */
+    private void drain() {
+        while (true) {
+            Integer block;
+            synchronized (this) {
+                block = closed ? null : queue.poll();
+                if (block == null) {
+                    pending.clear();
+                    running = false;
+                    return;
+                }
+                current = block;
+            }
+            try {
+                chmFile.prefetchBlock(block);
+            } catch (RuntimeException e) {
+                LOG.fine("Failed to prefetch block " + block + ": " + e);
+            } finally {
+                synchronized (this) {
+                    pending.remove(block);
+                    current = null;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            final AtomicInteger count = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r,
+                            "jchmlib-readahead-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+}
@@ -26,8 +26,13 @@ import java.util.regex.Pattern;
  * "query string" (go)*
  * Http[a-zA-Z]*Request\(.*\);
  * </pre>
+ *
+ * It can be used either with {@link ChmFile#enumerate}, or, to decompress
+ * each block only once, with {@link ChmFile#retrieveObjects}. With
+ * {@link ChmFile#enumerate}, use {@link ChmFile#CHM_ENUMERATE_STORAGE_ORDER},
+ * so that the content is read in one forward sweep.
  */
-public class ChmSearchEnumerator implements ChmEnumerator {
+public class ChmSearchEnumerator implements ChmEnumerator, ChmObjectHandler {
 
     private final ChmFile chmFile;
     private final int maxResults;
@@ -93,6 +98,10 @@ public class ChmSearchEnumerator implements ChmEnumerator {
     }
 
     public void enumerate(ChmUnitInfo ui) throws ChmStopEnumeration {
+        handleObject(ui, chmFile.retrieveObject(ui));
+    }
+
+    public void handleObject(ChmUnitInfo ui, ByteBuffer buf) throws ChmStopEnumeration {
         if (keywords.size() == 0) {
             throw new ChmStopEnumeration();
         }
@@ -106,7 +115,6 @@ public class ChmSearchEnumerator implements ChmEnumerator {
             }
         }
 
-        ByteBuffer buf = chmFile.retrieveObject(ui);
         if (buf == null) {
             return;
         }
@@ -0,0 +1,474 @@
+/*
+ * Copyright 2017 chimenchen. All rights reserved.
+ */
+
+package org.jchmlib;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * ChmSharedBlockCache is a cache of decompressed LZX blocks shared by many
+ * {@link ChmFile} objects, with one memory limit for all of them.
+ * Blocks are keyed by the CHM file they belong to and their index.
+ * <p>
+ * Eviction is segmented LRU: new blocks are put into a probationary segment,
+ * and moved to a protected segment when they are read again. Blocks are
+ * evicted from the probationary segment first, so reading a lot of blocks
+ * once, e.g. when a CHM file is indexed, doesn't evict blocks read often.
+ * Reads of a block by a thread in a row, e.g. of consecutive objects in the
+ * block, only count as one read.
+ * <p>
+ * Blocks can also be kept off the Java heap, in direct buffers. They are
+ * copied into them when cached, and their memory is released when they are
+ * garbage collected, so the maximum direct memory of the VM should leave
+ * room for the memory limit of the cache.
+ *
+ * @see ChmFileOptions#setSharedBlockCache(ChmSharedBlockCache)
+ */
+public class ChmSharedBlockCache {
+
+    /**
+     * Share of the memory limit the protected segment can take, in percent.
+     */
+    private final static int PROTECTED_PERCENT = 80;
+
+    // access order, so that the eldest entry is the least recently used one.
+    private final LinkedHashMap<Long, Entry> probation =
+            new LinkedHashMap<Long, Entry>(16, 0.75f, true);
+    private final LinkedHashMap<Long, Entry> protectedBlocks =
+            new LinkedHashMap<Long, Entry>(16, 0.75f, true);
+    // all blocks, for lookups that don't change the access order.
+    private final HashMap<Long, Entry> entries = new HashMap<Long, Entry>();
+    private final boolean offHeap;
+    private long maxBytes;
+    private long usedBytes;
+    private long protectedBytes;
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+    private int lastFileId = 0;
+    // reads by each thread, to tell reads of the same block in a row
+    private final ThreadLocal<long[]> readCounts = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+
+    /**
+     * Creates a new ChmSharedBlockCache.
+     *
+     * @param maxBytes the maximum number of bytes of decompressed data to keep. 0 disables
+     * caching.
+     * @param offHeap whether blocks are kept in direct buffers.
+     */
+    public ChmSharedBlockCache(long maxBytes, boolean offHeap) {
+        this.maxBytes = Math.max(maxBytes, 0);
+        this.offHeap = offHeap;
+    }
+
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Changes the memory limit of this cache.
+     *
+     * @param maxBytes the maximum number of bytes of decompressed data to keep. 0 disables
+     * caching.
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = Math.max(maxBytes, 0);
+        demote();
+        evict();
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public synchronized int getBlockCount() {
+        return probation.size() + protectedBlocks.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    public synchronized void clear() {
+        for (Entry e : probation.values()) {
+            removed(e, false);
+        }
+        for (Entry e : protectedBlocks.values()) {
+            removed(e, true);
+        }
+        probation.clear();
+        protectedBlocks.clear();
+        entries.clear();
+    }
+
+    public synchronized String toString() {
+        return String.format("ChmSharedBlockCache[blocks=%d, used=%d, protected=%d, "
+                        + "max=%d, hits=%d, misses=%d, evictions=%d]", getBlockCount(), usedBytes, protectedBytes, maxBytes,
+                hitCount, missCount, evictionCount);
+    }
+
+    /**
+     * @return the cache of a CHM file, backed by this cache.
+     */
+    synchronized AbstractBlockCache register() {
+        return new View(this, ++lastFileId);
+    }
+
+    private static long getKey(View owner, int block) {
+        return ((long) owner.id << 32) | (block & 0xffffffffL);
+    }
+
+    private synchronized ByteBuffer get(View owner, int block, boolean count,
+            boolean duplicate) {
+        Long key = getKey(owner, block);
+        if (!count) {
+            // a peek is not a read, so it doesn't move or protect the block
+            Entry e = entries.get(key);
+            if (e == null) {
+                return null;
+            }
+            return duplicate ? e.buf.duplicate() : e.buf;
+        }
+
+        long readCount = ++readCounts.get()[0];
+        Entry e = probation.get(key);
+        if (e == null) {
+            e = protectedBlocks.get(key);
+        } else if (e.referenced && !e.isLastRead(readCount - 1)) {
+            // read again later, so worth protecting
+            probation.remove(key);
+            protectedBlocks.put(key, e);
+            protectedBytes += e.buf.capacity();
+            demote();
+        }
+
+        if (e == null) {
+            missCount++;
+            owner.missCount++;
+            return null;
+        }
+        // the first read is of blocks decompressed ahead of time
+        e.setRead(readCount);
+        hitCount++;
+        owner.hitCount++;
+        return duplicate ? e.buf.duplicate() : e.buf;
+    }
+
+    /**
+     * @param read whether the block was decompressed because it was read,
+     * which counts as its first read.
+     */
+    private void put(View owner, int block, ByteBuffer buf, boolean read) {
+        if (buf == null) {
+            return;
+        }
+        synchronized (this) {
+            if (buf.capacity() > Math.min(maxBytes, owner.maxBytes)) {
+                return;
+            }
+        }
+        if (offHeap && !buf.isDirect()) {
+            ByteBuffer direct = ByteBuffer.allocateDirect(buf.capacity());
+            ByteBuffer src = buf.duplicate();
+            src.clear();
+            direct.put(src);
+            direct.clear();
+            buf = direct;
+        }
+
+        synchronized (this) {
+            Long key = getKey(owner, block);
+            remove(key);
+            Entry e = new Entry(owner, key, buf);
+            if (read) {
+                e.setRead(readCounts.get()[0]);
+            }
+            probation.put(key, e);
+            entries.put(key, e);
+            usedBytes += buf.capacity();
+            owner.usedBytes += buf.capacity();
+            owner.blockCount++;
+            evict();
+            evict(owner);
+        }
+    }
+
+    /**
+     * Changes the memory limit of the blocks of a CHM file.
+     */
+    private synchronized void setMaxBytes(View owner, long maxBytes) {
+        owner.maxBytes = Math.max(maxBytes, 0);
+        evict(owner);
+    }
+
+    private synchronized boolean contains(View owner, int block) {
+        Long key = getKey(owner, block);
+        return probation.containsKey(key) || protectedBlocks.containsKey(key);
+    }
+
+    /**
+     * Removes all blocks of a CHM file.
+     */
+    private synchronized void clear(View owner) {
+        removeAll(probation, owner);
+        removeAll(protectedBlocks, owner);
+    }
+
+    private void removeAll(LinkedHashMap<Long, Entry> blocks, View owner) {
+        Iterator<Map.Entry<Long, Entry>> it = blocks.entrySet().iterator();
+        while (it.hasNext()) {
+            Entry e = it.next().getValue();
+            if (e.owner == owner) {
+                it.remove();
+                removed(e, blocks == protectedBlocks);
+            }
+        }
+    }
+
+    private void remove(Long key) {
+        Entry e = probation.remove(key);
+        if (e != null) {
+            removed(e, false);
+            return;
+        }
+        e = protectedBlocks.remove(key);
+        if (e != null) {
+            removed(e, true);
+        }
+    }
+
+    private void removed(Entry e, boolean isProtected) {
+        entries.remove(e.key);
+        usedBytes -= e.buf.capacity();
+        e.owner.usedBytes -= e.buf.capacity();
+        e.owner.blockCount--;
+        if (isProtected) {
+            protectedBytes -= e.buf.capacity();
+        }
+    }
+
+    /**
+     * Moves the least recently used protected blocks back to the probationary
+     * segment, until the protected segment fits in its share.
+     */
+    private void demote() {
+        long maxProtectedBytes = maxBytes / 100 * PROTECTED_PERCENT;
+        Iterator<Map.Entry<Long, Entry>> it = protectedBlocks.entrySet().iterator();
+        while (protectedBytes > maxProtectedBytes && it.hasNext()) {
+            Map.Entry<Long, Entry> eldest = it.next();
+            it.remove();
+            protectedBytes -= eldest.getValue().buf.capacity();
+            probation.put(eldest.getKey(), eldest.getValue());
+        }
+    }
+
+    private void evict() {
+        evict(probation, false, null);
+        evict(protectedBlocks, true, null);
+    }
+
+    /**
+     * Evicts blocks of a CHM file until they fit in its own memory limit.
+     */
+    private void evict(View owner) {
+        evict(probation, false, owner);
+        evict(protectedBlocks, true, owner);
+    }
+
+    /**
+     * @param owner the CHM file to evict blocks of, or null to evict blocks of
+     * all CHM files until they fit in the memory limit of this cache.
+     */
+    private void evict(LinkedHashMap<Long, Entry> blocks, boolean isProtected, View owner) {
+        Iterator<Map.Entry<Long, Entry>> it = blocks.entrySet().iterator();
+        while (it.hasNext() && (owner == null ? usedBytes > maxBytes
+                : owner.usedBytes > owner.maxBytes)) {
+            Entry e = it.next().getValue();
+            if (owner != null && e.owner != owner) {
+                continue;
+            }
+            it.remove();
+            removed(e, isProtected);
+            evictionCount++;
+            e.owner.evictionCount++;
+        }
+    }
+
+    /**
+     * A cached block, with the CHM file it belongs to.
+     */
+    private static class Entry {
+
+        final View owner;
+        final Long key;
+        final ByteBuffer buf;
+        boolean referenced = false;
+        // the thread which read the block last, and its read count then
+        long reader;
+        long readCount;
+
+        Entry(View owner, Long key, ByteBuffer buf) {
+            this.owner = owner;
+            this.key = key;
+            this.buf = buf;
+        }
+
+        void setRead(long readCount) {
+            referenced = true;
+            reader = Thread.currentThread().getId();
+            this.readCount = readCount;
+        }
+
+        /**
+         * @return whether the read of the current thread with the given count
+         * was of this block.
+         */
+        boolean isLastRead(long readCount) {
+            return reader == Thread.currentThread().getId() && this.readCount == readCount;
+        }
+    }
+
+    /**
+     * The blocks of a CHM file in a shared cache. Its counters only count
+     * the blocks of the CHM file, and its memory limit only applies to them,
+     * within the one of the shared cache.
+     */
+    private static class View extends AbstractBlockCache {
+
+        private final ChmSharedBlockCache shared;
+        private final int id;
+        // guarded by shared
+        private long maxBytes = Long.MAX_VALUE;
+        private long usedBytes;
+        private int blockCount;
+        private long hitCount;
+        private long missCount;
+        private long evictionCount;
+
+        View(ChmSharedBlockCache shared, int id) {
+            this.shared = shared;
+            this.id = id;
+        }
+
+        @Override
+        public ByteBuffer get(int block) {
+            return shared.get(this, block, true, true);
+        }
+
+        @Override
+        ByteBuffer getShared(int block) {
+            return shared.get(this, block, true, false);
+        }
+
+        @Override
+        ByteBuffer peek(int block) {
+            return shared.get(this, block, false, true);
+        }
+
+        @Override
+        public void put(int block, ByteBuffer buf) {
+            shared.put(this, block, buf, false);
+        }
+
+        @Override
+        void putRead(int block, ByteBuffer buf) {
+            shared.put(this, block, buf, true);
+        }
+
+        @Override
+        public boolean contains(int block) {
+            return shared.contains(this, block);
+        }
+
+        @Override
+        public void clear() {
+            shared.clear(this);
+        }
+
+        /**
+         * @return the memory limit of the blocks of the CHM file, which is at most
+         * the one of the shared cache.
+         */
+        @Override
+        public long getMaxBytes() {
+            synchronized (shared) {
+                return Math.min(maxBytes, shared.maxBytes);
+            }
+        }
+
+        /**
+         * Changes the memory limit of the blocks of the CHM file. The limit of
+         * the shared cache, and the blocks of other CHM files, are unchanged.
+         */
+        @Override
+        public void setMaxBytes(long maxBytes) {
+            shared.setMaxBytes(this, maxBytes);
+        }
+
+        @Override
+        public long getUsedBytes() {
+            synchronized (shared) {
+                return usedBytes;
+            }
+        }
+
+        @Override
+        public int getBlockCount() {
+            synchronized (shared) {
+                return blockCount;
+            }
+        }
+
+        @Override
+        public long getHitCount() {
+            synchronized (shared) {
+                return hitCount;
+            }
+        }
+
+        @Override
+        public long getMissCount() {
+            synchronized (shared) {
+                return missCount;
+            }
+        }
+
+        @Override
+        public long getEvictionCount() {
+            synchronized (shared) {
+                return evictionCount;
+            }
+        }
+
+        @Override
+        public String toString() {
+            synchronized (shared) {
+                return String.format("ChmBlockCache[blocks=%d, used=%d, hits=%d, misses=%d, "
+                                + "evictions=%d, shared=%s]", blockCount, usedBytes,
+                        hitCount, missCount, evictionCount, shared);
+            }
+        }
+    }
+}
@@ -0,0 +1,358 @@
+/*
+ * Copyright 2017 chimenchen. All rights reserved.
+ */
+
+package org.jchmlib;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * ChmSidecar is what {@link ChmFile} parses when it opens a CHM file, i.e. the
+ * directory, the reset table and some metadata, saved to a file next to
+ * other sidecars, so that reopening the CHM file doesn't have to parse them again.
+ * <p>
+ * A sidecar is only used if the size and the modification time of the CHM
+ * file, and the checksum of its headers, are the same as when it was saved.
+ * <p>
+ * The format is little-endian, with arrays aligned to 8 bytes, so that
+ * it can be memory mapped and copied into arrays in bulk. The body is
+ * protected by a checksum, so a damaged sidecar is ignored instead of used.
+ */
+class ChmSidecar {
+
+    private final static Logger LOG = Logger.getLogger(ChmSidecar.class.getName());
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+    private final static long MAGIC = 0x313043534d48434aL; // "JCHMSC01"
+    private final static String SUFFIX = ".jchm";
+
+    // validation
+    String path;
+    long fileSize;
+    long lastModified;
+    long headerChecksum;
+
+    // headers
+    int langIDInItsfHeader;
+    long dataOffset;
+    long dirOffset;
+    int dirBlockLen;
+    int indexRoot;
+    int indexHead;
+
+    // compression
+    boolean compressionDisabled;
+    int blockUncompressedLen;
+    int windowSize;
+    int resetBlockCount;
+    long[] resetTable;
+
+    // #SYSTEM
+    String encoding;
+    int detectedLCID;
+    String homeFile;
+    String topicsFile;
+    String indexFile;
+    String title;
+    String generator;
+
+    ChmDirectory directory;
+
+    /**
+     * @return the sidecar for a CHM file, in the given directory.
+     */
+    static File getFile(File sidecarDir, File chmFile) {
+        return getFile(sidecarDir, chmFile, SUFFIX);
+    }
+
+    /**
+     * @return a file for a CHM file in the given directory, named after it,
+     * with a hash of its path, and the suffix.
+     */
+    static File getFile(File dir, File chmFile, String suffix) {
+        String path = chmFile.getAbsolutePath();
+        return new File(dir, String.format("%s-%08x%s", chmFile.getName(),
+                path.hashCode(), suffix));
+    }
+
+    /**
+     * @return checksum of the ITSF and ITSP headers of a CHM file.
+     */
+    static long getHeaderChecksum(ChmStorage storage, int itsfLen, int itspLen)
+            throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer itsf = storage.fetch(0, itsfLen);
+        long itspOffset = new ChmItsfHeader(itsf.duplicate().order(ByteOrder.LITTLE_ENDIAN))
+                .dirOffset;
+        update(crc, itsf);
+        update(crc, storage.fetch(itspOffset, itspLen));
+        return crc.getValue();
+    }
+
+    private static void update(CRC32 crc, ByteBuffer buf) {
+        byte[] bytes = new byte[Math.min(buf.remaining(), 0x10000)];
+        while (buf.hasRemaining()) {
+            int length = Math.min(buf.remaining(), bytes.length);
+            buf.get(bytes, 0, length);
+            crc.update(bytes, 0, length);
+        }
+    }
+
+    private static long getChecksum(ByteBuffer buf) {
+        CRC32 crc = new CRC32();
+        update(crc, buf);
+        return crc.getValue();
+    }
+
+    /**
+     * Reads a sidecar.
+     *
+     * @return the sidecar, or null if it doesn't exist or it is corrupted.
+     */
+    static ChmSidecar read(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        RandomAccessFile rf = null;
+        try {
+            // read into the heap, since a mapping would keep the file from being
+            // replaced or deleted on some platforms until it is garbage collected
+            rf = new RandomAccessFile(file, "r");
+            if (rf.length() > Integer.MAX_VALUE) {
+                return null;
+            }
+            byte[] bytes = new byte[(int) rf.length()];
+            rf.readFully(bytes);
+            ByteBuffer bb = ByteBuffer.wrap(bytes);
+            bb.order(ByteOrder.LITTLE_ENDIAN);
+            if (bb.getLong() != MAGIC) {
+                return null;
+            }
+            long bodyLength = bb.getLong();
+            long bodyChecksum = bb.getLong();
+            if (bodyLength != bb.remaining() || bodyChecksum != getChecksum(bb.duplicate())) {
+                LOG.info("Sidecar " + file + " is corrupted");
+                return null;
+            }
+
+            ChmSidecar sidecar = new ChmSidecar();
+            sidecar.path = getString(bb);
+            sidecar.fileSize = bb.getLong();
+            sidecar.lastModified = bb.getLong();
+            sidecar.headerChecksum = bb.getLong();
+
+            sidecar.langIDInItsfHeader = bb.getInt();
+            sidecar.dataOffset = bb.getLong();
+            sidecar.dirOffset = bb.getLong();
+            sidecar.dirBlockLen = bb.getInt();
+            sidecar.indexRoot = bb.getInt();
+            sidecar.indexHead = bb.getInt();
+
+            sidecar.compressionDisabled = bb.getInt() != 0;
+            sidecar.blockUncompressedLen = bb.getInt();
+            sidecar.windowSize = bb.getInt();
+            sidecar.resetBlockCount = bb.getInt();
+            int resetTableLength = bb.getInt();
+            sidecar.resetTable = resetTableLength < 0 ? null : getLongs(bb, resetTableLength);
+
+            sidecar.encoding = getString(bb);
+            sidecar.detectedLCID = bb.getInt();
+            sidecar.homeFile = getString(bb);
+            sidecar.topicsFile = getString(bb);
+            sidecar.indexFile = getString(bb);
+            sidecar.title = getString(bb);
+            sidecar.generator = getString(bb);
+
+            sidecar.directory = ChmDirectory.readFrom(bb);
+            return sidecar;
+        } catch (Exception e) {
+            LOG.info("Failed to read sidecar " + file + ": " + e);
+            return null;
+        } finally {
+            if (rf != null) {
+                try {
+                    rf.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes this sidecar, replacing the existing one.
+     */
+    void write(File file) {
+        byte[] pathBytes = path.getBytes(UTF8);
+        ByteBuffer bb = ByteBuffer.allocate(512 + pathBytes.length +
+                (resetTable == null ? 0 : resetTable.length * 8) +
+                directory.getSerializedSize() + getStringsLength());
+        bb.order(ByteOrder.LITTLE_ENDIAN);
+
+        bb.putLong(MAGIC);
+        bb.putLong(0); // length of the body
+        bb.putLong(0); // checksum of the body
+        int bodyStart = bb.position();
+        putString(bb, path);
+        bb.putLong(fileSize);
+        bb.putLong(lastModified);
+        bb.putLong(headerChecksum);
+
+        bb.putInt(langIDInItsfHeader);
+        bb.putLong(dataOffset);
+        bb.putLong(dirOffset);
+        bb.putInt(dirBlockLen);
+        bb.putInt(indexRoot);
+        bb.putInt(indexHead);
+
+        bb.putInt(compressionDisabled ? 1 : 0);
+        bb.putInt(blockUncompressedLen);
+        bb.putInt(windowSize);
+        bb.putInt(resetBlockCount);
+        if (resetTable == null) {
+            bb.putInt(-1);
+        } else {
+            bb.putInt(resetTable.length);
+            putLongs(bb, resetTable);
+        }
+
+        putString(bb, encoding);
+        bb.putInt(detectedLCID);
+        putString(bb, homeFile);
+        putString(bb, topicsFile);
+        putString(bb, indexFile);
+        putString(bb, title);
+        putString(bb, generator);
+
+        directory.writeTo(bb);
+        bb.flip();
+        ByteBuffer body = bb.duplicate();
+        body.position(bodyStart);
+        bb.putLong(8, body.remaining());
+        bb.putLong(16, getChecksum(body));
+
+        // write to a temporary file first, so that readers never see a partial sidecar
+        File dir = file.getAbsoluteFile().getParentFile();
+        File tmp = null;
+        FileOutputStream out = null;
+        try {
+            //noinspection ResultOfMethodCallIgnored
+            dir.mkdirs();
+            tmp = File.createTempFile(file.getName(), ".tmp", dir);
+            out = new FileOutputStream(tmp);
+            out.getChannel().write(bb);
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+                if (!tmp.renameTo(file)) {
+                    throw new IOException("Failed to rename " + tmp);
+                }
+            }
+            tmp = null;
+        } catch (IOException e) {
+            LOG.info("Failed to write sidecar " + file + ": " + e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+            if (tmp != null) {
+                //noinspection ResultOfMethodCallIgnored
+                tmp.delete();
+            }
+        }
+    }
+
+    private int getStringsLength() {
+        int length = 0;
+        for (String s : new String[]{encoding, homeFile, topicsFile, indexFile, title,
+                generator}) {
+            length += 8 + (s == null ? 0 : s.length() * 4);
+        }
+        return length;
+    }
+
+    private static void putString(ByteBuffer bb, String s) {
+        if (s == null) {
+            bb.putInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(UTF8);
+        bb.putInt(bytes.length);
+        bb.put(bytes);
+    }
+
+    private static String getString(ByteBuffer bb) {
+        int length = bb.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > bb.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        bb.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    private static void align(ByteBuffer bb) {
+        while (bb.position() % 8 != 0) {
+            bb.put((byte) 0);
+        }
+    }
+
+    private static void skipPadding(ByteBuffer bb) {
+        bb.position((bb.position() + 7) & ~7);
+    }
+
+    static void putBytes(ByteBuffer bb, byte[] values) {
+        align(bb);
+        bb.put(values);
+    }
+
+    static byte[] getBytes(ByteBuffer bb, int length) {
+        skipPadding(bb);
+        byte[] values = new byte[length];
+        bb.get(values);
+        return values;
+    }
+
+    static void putInts(ByteBuffer bb, int[] values) {
+        align(bb);
+        bb.asIntBuffer().put(values);
+        bb.position(bb.position() + values.length * 4);
+    }
+
+    static int[] getInts(ByteBuffer bb, int length) {
+        skipPadding(bb);
+        int[] values = new int[length];
+        bb.asIntBuffer().get(values);
+        bb.position(bb.position() + length * 4);
+        return values;
+    }
+
+    static void putLongs(ByteBuffer bb, long[] values) {
+        align(bb);
+        bb.asLongBuffer().put(values);
+        bb.position(bb.position() + values.length * 8);
+    }
+
+    static long[] getLongs(ByteBuffer bb, int length) {
+        skipPadding(bb);
+        long[] values = new long[length];
+        bb.asLongBuffer().get(values);
+        bb.position(bb.position() + length * 8);
+        return values;
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2017 chimenchen. All rights reserved.
+ */
+
+package org.jchmlib;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Where the bytes of a CHM file come from.
+ * <p>
+ * Implementations should be safe to use from multiple threads.
+ */
+abstract class ChmStorage implements Closeable {
+
+    /**
+     * @return size of the CHM file in bytes.
+     */
+    abstract long size();
+
+    /**
+     * Gets a range of bytes.
+     *
+     * @param offset offset from the beginning of the CHM file.
+     * @param len number of bytes.
+     * @return a little-endian buffer holding the bytes, positioned at 0.
+     * Callers should not modify its content.
+     * @throws IOException if the range is out of bounds or can't be read.
+     */
+    abstract ByteBuffer fetch(long offset, int len) throws IOException;
+
+    /**
+     * Gets a byte. Implementations backed by buffers don't create buffers.
+     *
+     * @param offset offset from the beginning of the CHM file.
+     * @throws IOException if the offset is out of bounds or can't be read.
+     */
+    byte get(long offset) throws IOException {
+        return fetch(offset, 1).get(0);
+    }
+
+    /**
+     * Copies a range of bytes to dst, from its position. Implementations backed
+     * by buffers don't create buffers for small ranges.
+     *
+     * @param offset offset from the beginning of the CHM file.
+     * @param dst where to copy the bytes.
+     * @param len number of bytes, no more than the bytes remaining in dst.
+     * @throws IOException if the range is out of bounds or can't be read.
+     */
+    void read(long offset, ByteBuffer dst, int len) throws IOException {
+        dst.put(fetch(offset, len));
+    }
+
+    void checkRange(long offset, long len) throws IOException {
+        if (offset < 0 || len < 0 || offset + len > size()) {
+            throw new IOException(String.format(
+                    "Range [%d, %d) out of bounds, size %d", offset, offset + len, size()));
+        }
+    }
+}
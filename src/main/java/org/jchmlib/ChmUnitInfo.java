@@ -47,19 +47,34 @@ public class ChmUnitInfo {
             throw new IOException("Failed to parse CHM unit info", e);
         }
 
-        flags = 0;
+        flags = getFlags(path);
+    }
+
+    ChmUnitInfo(String path, long start, long length, int space, int flags) {
+        this.path = path;
+        this.start = start;
+        this.length = length;
+        this.space = space;
+        this.flags = flags;
+    }
+
+    /**
+     * @return the flags of an object stored in the directory with the given path.
+     */
+    static int getFlags(CharSequence path) {
+        int len = path.length();
+        int flags = 0;
         // check for DIRS vs. FILES
-        if (path.endsWith("/")) {
+        if (len > 0 && path.charAt(len - 1) == '/') {
             flags |= ChmFile.CHM_ENUMERATE_DIRS;
         } else {
             flags |= ChmFile.CHM_ENUMERATE_FILES;
         }
 
         // check for NORMAL vs. META
-        if (path.startsWith("/")) {
+        if (len > 0 && path.charAt(0) == '/') {
             // check for NORMAL vs. SPECIAL
-            if (path.startsWith("/#") ||
-                    path.startsWith("/$")) {
+            if (len > 1 && (path.charAt(1) == '#' || path.charAt(1) == '$')) {
                 flags |= ChmFile.CHM_ENUMERATE_SPECIAL;
             } else {
                 flags |= ChmFile.CHM_ENUMERATE_NORMAL;
@@ -68,9 +83,37 @@ public class ChmUnitInfo {
             flags |= ChmFile.CHM_ENUMERATE_META;
         }
 
-        if (path.endsWith(".hhc") || path.endsWith(".hhk")) {
+        if (endsWith(path, ".hhc") || endsWith(path, ".hhk")) {
             flags = ChmFile.CHM_ENUMERATE_META;
         }
+        return flags;
+    }
+
+    private static boolean endsWith(CharSequence s, String suffix) {
+        int offset = s.length() - suffix.length();
+        if (offset < 0) {
+            return false;
+        }
+        for (int i = 0; i < suffix.length(); i++) {
+            if (s.charAt(offset + i) != suffix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return offset of the object in its content section, after decompression.
+     */
+    public long getStart() {
+        return start;
+    }
+
+    /**
+     * @return true if the object is in the compressed content section.
+     */
+    public boolean isCompressed() {
+        return space == ChmFile.CHM_COMPRESSED;
     }
 
     public long getLength() {
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2017 chimenchen. All rights reserved.
+ */
+
+package org.jchmlib;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A bit reader specialised for LZX bitstreams, reading from a byte array.
+ * <p>
+ * An LZX bitstream is a sequence of 16 bit integers
+ * stored in the order least-significant-byte most-significant-byte.
+ * see https://msdn.microsoft.com/en-us/library/bb417343.aspx#bitstream
+ * <p>
+ * Bits are kept in a 64-bit buffer, most significant bit first, and refilled
+ * with up to 4 words at a time. Past the end of input, zero bits are returned.
+ */
+final class LZXBitReader {
+
+    long bitBuffer;
+    int bitsBuffered;
+    private byte[] data;
+    private int pos;
+    private int end;
+    // holds the input if it is not backed by an array
+    private byte[] scratch = new byte[0];
+
+    /**
+     * Starts reading a new input. The remaining bytes of bb are consumed.
+     */
+    void init(ByteBuffer bb) {
+        int len = bb.remaining();
+        if (bb.hasArray()) {
+            data = bb.array();
+            pos = bb.arrayOffset() + bb.position();
+            bb.position(bb.limit());
+        } else {
+            if (scratch.length < len) {
+                scratch = new byte[len];
+            }
+            bb.get(scratch, 0, len);
+            data = scratch;
+            pos = 0;
+        }
+        end = pos + len;
+        bitBuffer = 0L;
+        bitsBuffered = 0;
+    }
+
+    /**
+     * Ensures there are at least n bits in the bit buffer, n &lt;= 48.
+     */
+    void ensureBits(int n) {
+        if (bitsBuffered >= n) {
+            return;
+        }
+
+        int words = (64 - bitsBuffered) >>> 4;
+        if (pos + (words << 1) <= end) {
+            byte[] data = this.data;
+            int pos = this.pos;
+            long bitBuffer = this.bitBuffer;
+            int bitsBuffered = this.bitsBuffered;
+            for (int i = 0; i < words; i++) {
+                int word = (data[pos] & 0xFF) | (data[pos + 1] & 0xFF) << 8;
+                pos += 2;
+                bitBuffer |= (long) word << (48 - bitsBuffered);
+                bitsBuffered += 16;
+            }
+            this.pos = pos;
+            this.bitBuffer = bitBuffer;
+            this.bitsBuffered = bitsBuffered;
+        } else {
+            // near the end of input
+            while (bitsBuffered < n) {
+                int word = readUInt8() | readUInt8() << 8;
+                bitBuffer |= (long) word << (48 - bitsBuffered);
+                bitsBuffered += 16;
+            }
+        }
+    }
+
+    /**
+     * Extracts (without removing) N bits from the bit buffer
+     */
+    int peekBits(int n) {
+        return (int) (bitBuffer >>> (64 - n));
+    }
+
+    void removeBits(int n) {
+        bitBuffer <<= n;
+        bitsBuffered -= n;
+    }
+
+    int readBits(int n) {
+        ensureBits(n);
+        int result = peekBits(n);
+        removeBits(n);
+        return result;
+    }
+
+    /**
+     * Drops 1 to 16 padding bits to align the bitstream to the next word,
+     * and gives back the words read ahead, so that raw bytes can be read.
+     */
+    void alignToBytes() {
+        ensureBits(16);
+        int padding = ((bitsBuffered - 1) & 15) + 1;
+        pos -= (bitsBuffered - padding) >>> 3;
+        bitBuffer = 0L;
+        bitsBuffered = 0;
+    }
+
+    /**
+     * Reads a little-endian int from the raw bytes. Should follow {@link #alignToBytes()}.
+     */
+    int readRawInt() {
+        return readUInt8() | readUInt8() << 8 | readUInt8() << 16 | readUInt8() << 24;
+    }
+
+    /**
+     * Copies raw bytes. Should follow {@link #alignToBytes()}.
+     *
+     * @return number of bytes copied, less than len at the end of input.
+     */
+    int readRawBytes(byte[] dst, int offset, int len) {
+        int n = Math.max(Math.min(len, end - pos), 0);
+        System.arraycopy(data, pos, dst, offset, n);
+        pos += n;
+        return n;
+    }
+
+    /**
+     * Skips raw bytes. Should follow {@link #alignToBytes()}.
+     */
+    void skipRawBytes(int n) {
+        pos += n;
+    }
+
+    private int readUInt8() {
+        // may read past the end while decompressing, pad with zeros.
+        int b = pos < end ? data[pos] & 0xFF : 0;
+        pos++;
+        return b;
+    }
+}
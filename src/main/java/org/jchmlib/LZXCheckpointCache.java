@@ -0,0 +1,107 @@
+/*
+ * Copyright 2017 chimenchen. All rights reserved.
+ */
+
+package org.jchmlib;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A memory-bounded LRU store of {@link LZXInflator} states captured at block boundaries.
+ * <p>
+ * A checkpoint for block N holds the state of an inflator right after it has
+ * decompressed block N-1, so decompression of block N can start from it
+ * instead of replaying the blocks since the last reset.
+ */
+class LZXCheckpointCache {
+
+    private final LinkedHashMap<Integer, LZXInflator.State> checkpoints =
+            new LinkedHashMap<Integer, LZXInflator.State>(16, 0.75f, true);
+    private int blockInterval;
+    private long maxBytes;
+    private long usedBytes;
+
+    /**
+     * @param blockInterval capture a checkpoint every blockInterval blocks. 0 disables
+     * checkpoints.
+     * @param maxBytes maximum memory used by checkpoints.
+     */
+    LZXCheckpointCache(int blockInterval, long maxBytes) {
+        configure(blockInterval, maxBytes);
+    }
+
+    synchronized void configure(int blockInterval, long maxBytes) {
+        this.blockInterval = Math.max(blockInterval, 0);
+        this.maxBytes = Math.max(maxBytes, 0);
+        if (this.blockInterval == 0) {
+            checkpoints.clear();
+            usedBytes = 0;
+        }
+        evict();
+    }
+
+    synchronized boolean isEnabled() {
+        return blockInterval > 0 && maxBytes > 0;
+    }
+
+    /**
+     * @param block index of a block.
+     * @param intervalStart index of the first block in its reset interval.
+     * @return true if a checkpoint should be captured before the block.
+     */
+    synchronized boolean wants(int block, int intervalStart) {
+        return isEnabled() && block > intervalStart &&
+                (block - intervalStart) % blockInterval == 0 &&
+                !checkpoints.containsKey(block);
+    }
+
+    /**
+     * Finds the nearest checkpoint at or before a block, but after a lower bound.
+     *
+     * @param block index of the block to be decompressed.
+     * @param lowerBound checkpoints for blocks before or at lowerBound are ignored.
+     * @return index of the block of the checkpoint, or -1 if there is none.
+     */
+    synchronized int findNearest(int block, int lowerBound) {
+        if (!isEnabled() || checkpoints.isEmpty()) {
+            return -1;
+        }
+        for (int i = block; i > lowerBound; i--) {
+            if (checkpoints.containsKey(i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    synchronized LZXInflator.State get(int block) {
+        return checkpoints.get(block);
+    }
+
+    synchronized void put(int block, LZXInflator.State state) {
+        if (!isEnabled() || state.getSize() > maxBytes) {
+            return;
+        }
+        LZXInflator.State old = checkpoints.put(block, state);
+        if (old != null) {
+            usedBytes -= old.getSize();
+        }
+        usedBytes += state.getSize();
+        evict();
+    }
+
+    synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<Integer, LZXInflator.State>> it = checkpoints.entrySet().iterator();
+        while (usedBytes > maxBytes && it.hasNext()) {
+            LZXInflator.State state = it.next().getValue();
+            it.remove();
+            usedBytes -= state.getSize();
+        }
+    }
+}
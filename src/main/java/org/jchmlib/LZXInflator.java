@@ -2,6 +2,7 @@ package org.jchmlib;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.Arrays;
 
 /**
  * A decompressor for LZX format
@@ -31,6 +32,17 @@ public class LZXInflator {
     private static final int LZX_ALIGNED_MAXSYMBOLS = LZX_ALIGNED_NUM_ELEMENTS;
     private static final int LZX_ALIGNED_TABLEBITS = 7;
     private static final int LZX_LENTABLE_SAFETY = 64; /* we allow length table decoding overruns */
+    /* lookup tables of the fast decoder, see makeFastTable */
+    private static final int LZX_MAINTREE_FASTBITS = 14;
+    private static final int LZX_LENGTH_FASTBITS = 12;
+    // shorter LZX blocks don't decode enough symbols to pay for the lookup tables
+    private static final int LZX_FAST_MIN_BLOCK_LENGTH = 16384;
+    private static final int FAST_SYMBOL_MASK = 0x3ff;
+    private static final int FAST_SYMBOL2_SHIFT = 10;
+    private static final int FAST_LENGTH_SHIFT = 18;
+    private static final int FAST_LENGTH_MASK = 0x1f;
+    private static final int FAST_TWO_LITERALS = 1 << 23;
+    private static final int FAST_NO_ENTRY = -1;
     /* LZX uses what it calls 'position slots' to represent match offsets.
      * What this means is that a small 'position slot' number and a small
      * offset from that slot are encoded instead of one large offset for
@@ -65,6 +77,13 @@ public class LZXInflator {
     private final int[] alignedTable = new int[(1 << LZX_ALIGNED_TABLEBITS) + (
             LZX_ALIGNED_MAXSYMBOLS << 1)];
     private final byte[] alignedLen = new byte[LZX_ALIGNED_MAXSYMBOLS + LZX_LENTABLE_SAFETY];
+    private final int[] mainTreeFastTable = new int[1 << LZX_MAINTREE_FASTBITS];
+    private final int[] lengthFastTable = new int[1 << LZX_LENGTH_FASTBITS];
+    private final int[] fastTableNext =
+            new int[Math.max(LZX_MAINTREE_FASTBITS, LZX_LENGTH_FASTBITS) + 2];
+    private boolean fastDecoding = false;
+    // reused for every frame
+    private final LZXBitReader bitReader = new LZXBitReader();
     private byte[] window;        // the actual decoding window
     private int windowSize;     // window size (32Kb through 2Mb)
     private int positionInWindow;     // current offset within the window
@@ -80,6 +99,12 @@ public class LZXInflator {
     private int intelFileSize;  // magic header value used for transform
     private int intelCurPos;    // current offset in transform space
     private boolean intelStarted;   // have we seen any translatable data yet?
+    private long numBytesDecoded; // bytes decoded since last reset
+    // the block being decompressed in steps, see decompressPartially
+    private byte[] partialOut;
+    private int partialOffset;
+    private int partialLen;
+    private int partialDone;
 
     public LZXInflator(int iWindow) {
         // LZX supports window sizes of 2^15 (32Kb) through 2^21 (2Mb)
@@ -109,6 +134,41 @@ public class LZXInflator {
         reset();
     }
 
+    /**
+     * @return true if the fast decoder is used.
+     */
+    public boolean isFastDecoding() {
+        return fastDecoding;
+    }
+
+    /**
+     * Chooses between the fast decoder and the original one. Both produce the same output.
+     * <p>
+     * The fast decoder looks up Huffman codes of up to 14 bits (main tree) and 12 bits
+     * (length tree) in one step, decodes two literals at once when both codes fit in
+     * the lookup, and copies matches with System.arraycopy.
+     * Should only be called between two calls to decompress, or right after a reset.
+     */
+    public void setFastDecoding(boolean fastDecoding) {
+        boolean wasUsingFastTables = useFastTables();
+        this.fastDecoding = fastDecoding;
+        if (!wasUsingFastTables && useFastTables() && isHeaderRead &&
+                (blockType == LZX_BLOCKTYPE_VERBATIM || blockType == LZX_BLOCKTYPE_ALIGNED)) {
+            // the current LZX block may continue in next frame
+            makeFastTable(mainTreeFastTable, mainTreeLen, LZX_MAINTREE_FASTBITS,
+                    LZX_MAINTREE_MAXSYMBOLS, true);
+            makeFastTable(lengthFastTable, lengthLen, LZX_LENGTH_FASTBITS,
+                    LZX_LENGTH_MAXSYMBOLS, false);
+        }
+    }
+
+    /**
+     * @return true if the current LZX block is decoded with the fast decoder.
+     */
+    private boolean useFastTables() {
+        return fastDecoding && blockLength >= LZX_FAST_MIN_BLOCK_LENGTH;
+    }
+
     /**
      * reset an LZX stream.
      */
@@ -123,6 +183,8 @@ public class LZXInflator {
         intelCurPos = 0;
         intelStarted = false;
         positionInWindow = 0;
+        numBytesDecoded = 0;
+        partialOut = null;
 
         /* initialise tables to 0 (because deltas will be applied to them) */
         for (int i = 0; i < LZX_MAINTREE_MAXSYMBOLS + LZX_LENTABLE_SAFETY; i++) {
@@ -133,19 +195,182 @@ public class LZXInflator {
         }
     }
 
+    /**
+     * Captures the decoding state, so that decompression can later resume from
+     * this point with {@link #restoreState(State)}, instead of from the last reset.
+     * Should only be called between two calls to {@link #decompress(ByteBuffer, int)}.
+     *
+     * @return a snapshot of the state.
+     */
+    State saveState() {
+        State state = new State();
+        // only the part of the window written since last reset is needed.
+        int windowBytes = (int) Math.min(numBytesDecoded, windowSize);
+        state.window = new byte[windowBytes];
+        System.arraycopy(window, 0, state.window, 0, windowBytes);
+        state.positionInWindow = positionInWindow;
+        state.R0 = R0;
+        state.R1 = R1;
+        state.R2 = R2;
+        state.isHeaderRead = isHeaderRead;
+        state.blockType = blockType;
+        state.blockLength = blockLength;
+        state.remainingInBlock = remainingInBlock;
+        state.numFramesRead = numFramesRead;
+        state.intelFileSize = intelFileSize;
+        state.intelCurPos = intelCurPos;
+        state.intelStarted = intelStarted;
+        state.numBytesDecoded = numBytesDecoded;
+        state.mainTreeLen = mainTreeLen.clone();
+        state.lengthLen = lengthLen.clone();
+        state.alignedLen = alignedLen.clone();
+        return state;
+    }
+
+    /**
+     * Restores a decoding state captured by {@link #saveState()}
+     * on an inflator with the same window size.
+     *
+     * @param state the snapshot.
+     * @return true if the state is restored.
+     */
+    boolean restoreState(State state) {
+        if (window == null || state.window.length > windowSize) {
+            return false;
+        }
+
+        System.arraycopy(state.window, 0, window, 0, state.window.length);
+        partialOut = null;
+        positionInWindow = state.positionInWindow;
+        R0 = state.R0;
+        R1 = state.R1;
+        R2 = state.R2;
+        isHeaderRead = state.isHeaderRead;
+        blockType = state.blockType;
+        blockLength = state.blockLength;
+        remainingInBlock = state.remainingInBlock;
+        numFramesRead = state.numFramesRead;
+        intelFileSize = state.intelFileSize;
+        intelCurPos = state.intelCurPos;
+        intelStarted = state.intelStarted;
+        numBytesDecoded = state.numBytesDecoded;
+        System.arraycopy(state.mainTreeLen, 0, mainTreeLen, 0, mainTreeLen.length);
+        System.arraycopy(state.lengthLen, 0, lengthLen, 0, lengthLen.length);
+        System.arraycopy(state.alignedLen, 0, alignedLen, 0, alignedLen.length);
+
+        // the current LZX block may continue in next CHM block,
+        // so rebuild its decoding tables.
+        if (blockType == LZX_BLOCKTYPE_VERBATIM || blockType == LZX_BLOCKTYPE_ALIGNED) {
+            if (0 != makeMainTreeDecodeTable() || 0 != makeLengthDecodeTable()) {
+                reset();
+                return false;
+            }
+            if (blockType == LZX_BLOCKTYPE_ALIGNED && 0 != makeAlignedDecodeTable()) {
+                reset();
+                return false;
+            }
+        }
+        return true;
+    }
+
     private int makeAlignedDecodeTable() {
         return makeDecodeTable(alignedTable, alignedLen,
                 LZX_ALIGNED_TABLEBITS, LZX_ALIGNED_MAXSYMBOLS);
     }
 
     private int makeMainTreeDecodeTable() {
-        return makeDecodeTable(mainTreeTable, mainTreeLen,
+        int result = makeDecodeTable(mainTreeTable, mainTreeLen,
                 LZX_MAINTREE_TABLEBITS, LZX_MAINTREE_MAXSYMBOLS);
+        if (result == 0 && useFastTables()) {
+            makeFastTable(mainTreeFastTable, mainTreeLen, LZX_MAINTREE_FASTBITS,
+                    LZX_MAINTREE_MAXSYMBOLS, true);
+        }
+        return result;
     }
 
     private int makeLengthDecodeTable() {
-        return makeDecodeTable(lengthTable, lengthLen,
+        int result = makeDecodeTable(lengthTable, lengthLen,
                 LZX_LENGTH_TABLEBITS, LZX_LENGTH_MAXSYMBOLS);
+        if (result == 0 && useFastTables()) {
+            makeFastTable(lengthFastTable, lengthLen, LZX_LENGTH_FASTBITS,
+                    LZX_LENGTH_MAXSYMBOLS, false);
+        }
+        return result;
+    }
+
+    /**
+     * Makes a lookup table for the fast decoder, indexed by the next nBits bits.
+     * An entry holds a symbol and the length of its code, or FAST_NO_ENTRY if
+     * the code is longer than nBits, in which case the decode table is used.
+     * If twoLiterals is true, an entry whose bits hold two literal codes holds
+     * both literals, flagged by FAST_TWO_LITERALS, with their total length.
+     * <p>
+     * Codes are assigned as in makeDecodeTable, which should have accepted
+     * the lengths beforehand.
+     */
+    private void makeFastTable(int[] table, byte[] length, int nBits, int nSymbols,
+            boolean twoLiterals) {
+        int tableSize = 1 << nBits;
+
+        // canonical codes: shorter codes first, then by symbol.
+        // next[len] is where the next code of that length starts in the table.
+        int[] next = fastTableNext;
+        Arrays.fill(next, 0);
+        for (int sym = 0; sym < nSymbols; sym++) {
+            int len = length[sym];
+            if (len > 0 && len <= nBits) {
+                next[len + 1] += 1 << (nBits - len);
+            }
+        }
+        for (int len = 1; len <= nBits; len++) {
+            next[len + 1] += next[len];
+        }
+        int used = next[nBits + 1];
+
+        for (int sym = 0; sym < nSymbols; sym++) {
+            int len = length[sym];
+            if (len > 0 && len <= nBits) {
+                int entry = sym | (len << FAST_LENGTH_SHIFT);
+                int pos = next[len];
+                int end = pos + (1 << (nBits - len));
+                next[len] = end;
+                while (pos < end) {
+                    table[pos++] = entry;
+                }
+            }
+        }
+        for (int pos = used; pos < tableSize; pos++) {
+            table[pos] = FAST_NO_ENTRY;
+        }
+
+        if (!twoLiterals) {
+            return;
+        }
+        for (int i = 0; i < tableSize; i++) {
+            int first = table[i];
+            if (first == FAST_NO_ENTRY || (first & FAST_SYMBOL_MASK) >= LZX_NUM_CHARS) {
+                continue;
+            }
+            int firstLen = first >>> FAST_LENGTH_SHIFT;
+            // the bits after the first code, the unknown low bits don't matter
+            // if the second code fits.
+            int second = table[(i << firstLen) & (tableSize - 1)];
+            if (second == FAST_NO_ENTRY || (second & FAST_SYMBOL_MASK) >= LZX_NUM_CHARS) {
+                continue;
+            }
+            if ((second & FAST_TWO_LITERALS) != 0) {
+                // already combined, only take its first literal
+                int sym = second & FAST_SYMBOL_MASK;
+                second = sym | (length[sym] << FAST_LENGTH_SHIFT);
+            }
+            int secondLen = (second >>> FAST_LENGTH_SHIFT) & FAST_LENGTH_MASK;
+            if (firstLen + secondLen > nBits) {
+                continue;
+            }
+            table[i] = FAST_TWO_LITERALS | (first & FAST_SYMBOL_MASK) |
+                    ((second & FAST_SYMBOL_MASK) << FAST_SYMBOL2_SHIFT) |
+                    ((firstLen + secondLen) << FAST_LENGTH_SHIFT);
+        }
     }
 
     private int makePreTreeDecodeTable() {
@@ -236,7 +461,7 @@ public class LZXInflator {
         return 0;
     }
 
-    private int readLens(BitReader bitReader, byte[] lens, int first, int last) {
+    private int readLens(LZXBitReader bitReader, byte[] lens, int first, int last) {
         for (int x = 0; x < 20; x++) {
             int y = bitReader.readBits(4) & 0xff;
             preTreeLen[x] = (byte) y;
@@ -280,7 +505,7 @@ public class LZXInflator {
         return 0;
     }
 
-    private int readHuffSym(BitReader bitReader, int[] table, byte[] lenTable,
+    private int readHuffSym(LZXBitReader bitReader, int[] table, byte[] lenTable,
             int tableBits, int maxSymbols) {
 
         bitReader.ensureBits(16);
@@ -314,9 +539,122 @@ public class LZXInflator {
      * @return byte buffer decompressed
      */
     public ByteBuffer decompress(ByteBuffer inBuf, int outLen) {
-        ByteBuffer outBuf = ByteBuffer.allocate(outLen);
+        byte[] out = new byte[outLen];
+        if (!decompress(inBuf, out, 0, outLen)) {
+            return null;
+        }
+        ByteBuffer outBuf = ByteBuffer.wrap(out);
         outBuf.order(ByteOrder.LITTLE_ENDIAN);
-        BitReader bitReader = new BitReader(inBuf, true);
+        return outBuf;
+    }
+
+    /**
+     * Decompress a block of bytes into a byte array, without allocating memory.
+     *
+     * @param inBuf buffer holding the compressed data.
+     * @param out the array to hold the decompressed data.
+     * @param outOffset offset in out of the decompressed data.
+     * @param outLen length (in bytes) of the decompressed data.
+     * @return true if the block is decompressed.
+     */
+    public boolean decompress(ByteBuffer inBuf, byte[] out, int outOffset, int outLen) {
+        begin(inBuf);
+        return decompressBlock(out, outOffset, outLen);
+    }
+
+    /**
+     * Starts decompressing a block like {@link #decompress(ByteBuffer, byte[], int, int)},
+     * but may stop as soon as its first minLen bytes are in out.
+     * The rest of it can be decompressed later with {@link #resume(int)},
+     * as long as the inflator is not used for anything else in between.
+     * <p>
+     * Blocks needing the Intel E8 translation, which needs a whole block,
+     * are always decompressed completely.
+     *
+     * @param inBuf buffer holding the compressed data.
+     * @param out the array to hold the decompressed data.
+     * @param outOffset offset in out of the decompressed data.
+     * @param outLen length (in bytes) of the decompressed data.
+     * @param minLen length (in bytes) of the decompressed data needed now.
+     * @return number of bytes of the block in out, at least minLen,
+     * or -1 if there is error when decompressing.
+     */
+    int decompressPartially(ByteBuffer inBuf, byte[] out, int outOffset, int outLen,
+            int minLen) {
+        begin(inBuf);
+        if (intelFileSize != 0 && numFramesRead < 32768) {
+            return decompressBlock(out, outOffset, outLen) ? outLen : -1;
+        }
+
+        positionInWindow &= windowSize - 1;
+        if (positionInWindow + outLen > windowSize) {
+            return -1;
+        }
+        partialOut = out;
+        partialOffset = outOffset;
+        partialLen = outLen;
+        partialDone = 0;
+        return resume(minLen);
+    }
+
+    /**
+     * Continues decompressing the block started by
+     * {@link #decompressPartially(ByteBuffer, byte[], int, int, int)}.
+     *
+     * @param minLen length (in bytes) of the decompressed data needed now.
+     * @return number of bytes of the block in out, at least minLen, or -1 if there
+     * is error when decompressing, or no block is being decompressed.
+     */
+    int resume(int minLen) {
+        if (partialOut == null) {
+            return -1;
+        }
+        minLen = Math.min(minLen, partialLen);
+
+        while (partialDone < minLen) {
+            if (remainingInBlock == 0) {
+                if (0 != readBlockHeader()) {
+                    partialOut = null;
+                    return -1;
+                }
+            }
+
+            int numToRead = Math.min(minLen - partialDone, remainingInBlock);
+            int pos = positionInWindow;
+            if (0 != decompressBlockContent(numToRead, blockType)) {
+                partialOut = null;
+                return -1;
+            }
+
+            // the last match may go beyond what is needed now, but not beyond
+            // the LZX block or the CHM block, where decompress() would stop.
+            int numRead = positionInWindow - pos;
+            if (numRead > remainingInBlock || partialDone + numRead > partialLen) {
+                partialOut = null;
+                return -1;
+            }
+            System.arraycopy(window, pos, partialOut, partialOffset + partialDone, numRead);
+            remainingInBlock -= numRead;
+            partialDone += numRead;
+        }
+
+        int done = partialDone;
+        if (done == partialLen) {
+            // same as decompress() without the E8 translation
+            numBytesDecoded += partialLen;
+            numFramesRead++;
+            partialOut = null;
+        }
+        return done;
+    }
+
+    /**
+     * Starts reading the compressed data of a block,
+     * and the header of the stream if it is the first block after a reset.
+     */
+    private void begin(ByteBuffer inBuf) {
+        partialOut = null;
+        bitReader.init(inBuf);
 
         // read header if necessary
         if (!isHeaderRead) {
@@ -337,13 +675,15 @@ public class LZXInflator {
             }
             isHeaderRead = true;
         }
+    }
 
+    private boolean decompressBlock(byte[] out, int outOffset, int outLen) {
         // main decoding loop
         int totalNumToRead = outLen;
         while (totalNumToRead > 0) {
             if (remainingInBlock == 0) {
-                if (0 != readBlockHeader(inBuf, bitReader)) {
-                    return null;
+                if (0 != readBlockHeader()) {
+                    return false;
                 }
             }
 
@@ -353,48 +693,44 @@ public class LZXInflator {
             positionInWindow &= windowSize - 1;
             // runs can't straddle the window wraparound
             if ((positionInWindow + numToRead) > windowSize) {
-                return null;
+                return false;
             }
 
             totalNumToRead -= numToRead;
             remainingInBlock -= numToRead;
 
-            if (0 != decompressBlockContent(inBuf, bitReader, numToRead, blockType)) {
-                return null;
+            if (0 != decompressBlockContent(numToRead, blockType)) {
+                return false;
             }
         }
 
         if (totalNumToRead != 0) {
-            return null;
+            return false;
         }
+        numBytesDecoded += outLen;
 
         int start = ((positionInWindow == 0) ? windowSize : positionInWindow) - outLen;
 
-        outBuf.mark();
-        for (int num = 0; num < outLen; num++) {
-            outBuf.put(window[start + num]);
-        }
-        outBuf.reset();
+        System.arraycopy(window, start, out, outOffset, outLen);
 
         if ((numFramesRead++ >= 32768) || intelFileSize == 0) {
-            return outBuf;
+            return true;
         }
 
         if (outLen <= 6 || !intelStarted) {
             intelCurPos += outLen;
-            return outBuf;
+            return true;
         }
 
-        doIntelE8Decoding(outBuf);
-        return outBuf;
+        doIntelE8Decoding(out, outOffset, outLen);
+        return true;
     }
 
-    private int readBlockHeader(ByteBuffer inBuf, BitReader bitReader) {
+    private int readBlockHeader() {
         if (blockType == LZX_BLOCKTYPE_UNCOMPRESSED) {
             if ((blockLength & 1) != 0) {
-                inBuf.get(); // realign bitstream to word
+                bitReader.skipRawBytes(1); // realign bitstream to word
             }
-            bitReader.init(inBuf, true);
         }
 
         blockType = bitReader.readBits(3);
@@ -435,16 +771,11 @@ public class LZXInflator {
 
             case LZX_BLOCKTYPE_UNCOMPRESSED:
                 intelStarted = true; // because we can't assume otherwise
-                // get up to 16 pad bits into the buffer
-                bitReader.ensureBits(16);
-                if (bitReader.bitsBuffered > 16) {
-                    // and align the bitstream
-                    inBuf.position(inBuf.position() - 2);
-                }
-                inBuf.order(ByteOrder.LITTLE_ENDIAN);
-                R0 = inBuf.getInt();
-                R1 = inBuf.getInt();
-                R2 = inBuf.getInt();
+                // skip pad bits and align the bitstream
+                bitReader.alignToBytes();
+                R0 = bitReader.readRawInt();
+                R1 = bitReader.readRawInt();
+                R2 = bitReader.readRawInt();
                 break;
             default:
                 // System.out.println("block type " + blockType);
@@ -454,37 +785,38 @@ public class LZXInflator {
         return 0;
     }
 
-    private int readMainTreeHuffSym(BitReader bitReader) {
+    private int readMainTreeHuffSym(LZXBitReader bitReader) {
         return readHuffSym(bitReader, mainTreeTable, mainTreeLen,
                 LZX_MAINTREE_TABLEBITS, LZX_MAINTREE_MAXSYMBOLS);
     }
 
-    private int readAlignedHuffSym(BitReader bitReader) {
+    private int readAlignedHuffSym(LZXBitReader bitReader) {
         return readHuffSym(bitReader, alignedTable, alignedLen,
                 LZX_ALIGNED_TABLEBITS, LZX_ALIGNED_MAXSYMBOLS);
     }
 
-    private int readLengthHuffSym(BitReader bitReader) {
+    private int readLengthHuffSym(LZXBitReader bitReader) {
         return readHuffSym(bitReader, lengthTable, lengthLen,
                 LZX_LENGTH_TABLEBITS, LZX_LENGTH_MAXSYMBOLS);
     }
 
-    private int readPreTreeHuffSym(BitReader bitReader) {
+    private int readPreTreeHuffSym(LZXBitReader bitReader) {
         return readHuffSym(bitReader, preTreeTable, preTreeLen,
                 LZX_PRETREE_TABLEBITS, LZX_PRETREE_MAXSYMBOLS);
     }
 
-    private int decompressBlockContent(ByteBuffer inBuf, BitReader bitReader,
-            int this_run, int block_type) {
+    private int decompressBlockContent(int this_run, int block_type) {
         if (block_type == LZX_BLOCKTYPE_UNCOMPRESSED) {
-            for (int num = 0; num < this_run && inBuf.hasRemaining(); num++) {
-                window[positionInWindow++] = inBuf.get();
-            }
+            positionInWindow += bitReader.readRawBytes(window, positionInWindow, this_run);
             return 0;
         } else if (block_type != LZX_BLOCKTYPE_VERBATIM && block_type != LZX_BLOCKTYPE_ALIGNED) {
             return 1;
         }
 
+        if (useFastTables()) {
+            return decompressBlockContentFast(this_run, block_type);
+        }
+
         while (this_run > 0) {
             int main_element = readMainTreeHuffSym(bitReader);
             if (main_element < LZX_NUM_CHARS) {
@@ -578,23 +910,173 @@ public class LZXInflator {
         return 0;
     }
 
-    private void doIntelE8Decoding(ByteBuffer outBuf) {
+    /**
+     * Same as the verbatim/aligned part of decompressBlockContent,
+     * using the lookup tables made by makeFastTable.
+     */
+    private int decompressBlockContentFast(int this_run, int block_type) {
+        LZXBitReader bitReader = this.bitReader;
+        byte[] window = this.window;
+        int[] mainTreeFastTable = this.mainTreeFastTable;
+        int pos = positionInWindow;
+
+        while (this_run > 0) {
+            bitReader.ensureBits(16);
+            int entry = mainTreeFastTable[bitReader.peekBits(LZX_MAINTREE_FASTBITS)];
+            int main_element;
+            if (entry == FAST_NO_ENTRY) {
+                main_element = readMainTreeHuffSym(bitReader);
+            } else if ((entry & FAST_TWO_LITERALS) != 0) {
+                window[pos++] = (byte) entry;
+                if (this_run == 1) {
+                    bitReader.removeBits(mainTreeLen[entry & FAST_SYMBOL_MASK]);
+                    break;
+                }
+                window[pos++] = (byte) (entry >>> FAST_SYMBOL2_SHIFT);
+                bitReader.removeBits((entry >>> FAST_LENGTH_SHIFT) & FAST_LENGTH_MASK);
+                this_run -= 2;
+                continue;
+            } else {
+                main_element = entry & FAST_SYMBOL_MASK;
+                bitReader.removeBits(entry >>> FAST_LENGTH_SHIFT);
+            }
+
+            if (main_element < LZX_NUM_CHARS) {
+                // literal: 0 to LZX_NUM_CHARS -1
+                window[pos++] = (byte) main_element;
+                this_run--;
+                continue;
+            }
+
+            // match: LZX_NUM_CHARS + ((match_offset<<3) | match_length (3bits))
+            main_element -= LZX_NUM_CHARS;
+
+            int match_length = main_element & LZX_NUM_PRIMARY_LENGTHS; // 3bits
+            if (match_length == LZX_NUM_PRIMARY_LENGTHS) {
+                bitReader.ensureBits(16);
+                entry = lengthFastTable[bitReader.peekBits(LZX_LENGTH_FASTBITS)];
+                if (entry == FAST_NO_ENTRY) {
+                    match_length += readLengthHuffSym(bitReader);
+                } else {
+                    match_length += entry & FAST_SYMBOL_MASK;
+                    bitReader.removeBits(entry >>> FAST_LENGTH_SHIFT);
+                }
+            }
+            match_length += LZX_MIN_MATCH;
+
+            int match_offset = main_element >> 3;
+            if (match_offset > 2) {
+                // not repeated offset
+                if (block_type == LZX_BLOCKTYPE_VERBATIM) {
+                    if (match_offset != 3) {
+                        int extra = extraBits[match_offset];
+                        int verbatim_bits = bitReader.readBits(extra);
+                        match_offset = positionBase[match_offset] - 2 + verbatim_bits;
+                    } else {
+                        match_offset = 1;
+                    }
+
+                } else { // block_type == LZX_BLOCKTYPE_ALIGNED
+                    int extra = extraBits[match_offset];
+                    match_offset = positionBase[match_offset] - 2;
+                    if (extra > 3) {
+                        // verbatim and aligned bits
+                        extra -= 3;
+                        int verbatim_bits = bitReader.readBits(extra);
+                        match_offset += (verbatim_bits << 3);
+                        int aligned_bits = readAlignedHuffSym(bitReader);
+                        match_offset += aligned_bits;
+                    } else if (extra == 3) {
+                        // aligned bits only
+                        int aligned_bits = readAlignedHuffSym(bitReader);
+                        match_offset += aligned_bits;
+                    } else if (extra > 0) { // extra==1, extra==2
+                        // verbatim bits only
+                        int verbatim_bits = bitReader.readBits(extra);
+                        match_offset += verbatim_bits;
+                    } else { // extra == 0
+                        // ???
+                        match_offset = 1;
+                    }
+                }
+
+                // update repeated offset LRU queue
+                R2 = R1;
+                R1 = R0;
+                R0 = match_offset;
+
+            } else if (match_offset == 0) {
+                match_offset = R0;
+            } else if (match_offset == 1) {
+                match_offset = R1;
+                R1 = R0;
+                R0 = match_offset;
+            } else { // match_offset == 2
+                match_offset = R2;
+                R2 = R0;
+                R0 = match_offset;
+            }
+
+            int dest_offset = pos;
+            int src_offset = dest_offset - match_offset;
+            pos += match_length;
+            if (pos > windowSize) {
+                positionInWindow = pos;
+                return -1;
+            }
+            this_run -= match_length;
+
+            // copy any wrapped around source data,
+            // it lies after the destination, so a forward copy is safe.
+            if (src_offset < 0) {
+                int num = Math.min(-src_offset, match_length);
+                System.arraycopy(window, src_offset + windowSize, window, dest_offset, num);
+                dest_offset += num;
+                src_offset += num;
+                match_length -= num;
+            }
+            if (match_length <= 0) {
+                continue;
+            }
+            if (match_offset >= match_length) {
+                // no overlap
+                System.arraycopy(window, src_offset, window, dest_offset, match_length);
+            } else if (match_offset >= 8) {
+                // copy in non-overlapping chunks, each repeating the previous one
+                while (match_length > 0) {
+                    int num = Math.min(match_offset, match_length);
+                    System.arraycopy(window, src_offset, window, dest_offset, num);
+                    src_offset += num;
+                    dest_offset += num;
+                    match_length -= num;
+                }
+            } else {
+                while (match_length-- > 0) {
+                    window[dest_offset++] = window[src_offset++];
+                }
+            }
+        }
+
+        positionInWindow = pos;
+        return 0;
+    }
+
+    private void doIntelE8Decoding(byte[] out, int outOffset, int outLen) {
         long curPos = intelCurPos;
         long fileSize = intelFileSize;
 
-        outBuf.mark();
-        while (outBuf.position() < outBuf.limit() - 10) {
-            int b = outBuf.get() & 0xff;
+        int pos = outOffset;
+        int end = outOffset + outLen - 10;
+        while (pos < end) {
+            int b = out[pos++] & 0xff;
             if (b != 0xe8) {
                 curPos++;
                 continue;
             }
 
-            int markedOutBufPos = outBuf.position();
-
             // get UInt32
-            int tmp = outBuf.getInt();
-            long absoluteOffset = tmp & 0x00000000ffffffffL;
+            long absoluteOffset = (out[pos] & 0xff) | (out[pos + 1] & 0xff) << 8 |
+                    (out[pos + 2] & 0xff) << 16 | (long) (out[pos + 3] & 0xff) << 24;
 
             if ((absoluteOffset >= -curPos) && (absoluteOffset < fileSize)) {
                 long relativeOffset;
@@ -603,14 +1085,45 @@ public class LZXInflator {
                 } else {
                     relativeOffset = absoluteOffset + fileSize;
                 }
-                outBuf.position(markedOutBufPos);
-                outBuf.put((byte) (relativeOffset & 0xFF));
-                outBuf.put((byte) ((relativeOffset >>> 8) & 0xFF));
-                outBuf.put((byte) ((relativeOffset >>> 16) & 0xFF));
-                outBuf.put((byte) ((relativeOffset >>> 24) & 0xFF));
+                out[pos] = (byte) (relativeOffset & 0xFF);
+                out[pos + 1] = (byte) ((relativeOffset >>> 8) & 0xFF);
+                out[pos + 2] = (byte) ((relativeOffset >>> 16) & 0xFF);
+                out[pos + 3] = (byte) ((relativeOffset >>> 24) & 0xFF);
             }
+            pos += 4;
             curPos += 5;
         }
-        outBuf.reset();
+    }
+
+    /**
+     * A snapshot of the decoding state of an inflator.
+     */
+    static class State {
+
+        private byte[] window;
+        private int positionInWindow;
+        private int R0;
+        private int R1;
+        private int R2;
+        private boolean isHeaderRead;
+        private int blockType;
+        private int blockLength;
+        private int remainingInBlock;
+        private int numFramesRead;
+        private int intelFileSize;
+        private int intelCurPos;
+        private boolean intelStarted;
+        private long numBytesDecoded;
+        private byte[] mainTreeLen;
+        private byte[] lengthLen;
+        private byte[] alignedLen;
+
+        /**
+         * @return approximate memory used by this snapshot, in bytes.
+         */
+        int getSize() {
+            return window.length + mainTreeLen.length + lengthLen.length +
+                    alignedLen.length + 64;
+        }
     }
 }
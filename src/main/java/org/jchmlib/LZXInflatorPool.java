@@ -0,0 +1,136 @@
+/*
+ * Copyright 2017 chimenchen. All rights reserved.
+ */
+
+package org.jchmlib;
+
+import java.util.ArrayList;
+
+/**
+ * A pool of independent {@link LZXInflator} objects, each owning its window,
+ * so that blocks in different reset intervals can be decompressed in parallel.
+ * <p>
+ * Every inflator remembers the next block it can decompress without a reset,
+ * so a request for a later block in the same reset interval goes to the inflator
+ * already positioned there, and only the blocks in between are replayed.
+ * Requests for an interval some other thread is working on wait for that thread,
+ * instead of replaying the interval on another inflator.
+ */
+class LZXInflatorPool {
+
+    private final int windowBits;
+    private final boolean fastDecoding;
+    private final ArrayList<Entry> entries = new ArrayList<Entry>();
+    private int maxSize;
+    private long useCounter = 0;
+
+    LZXInflatorPool(int windowBits, int maxSize, boolean fastDecoding) {
+        this.windowBits = windowBits;
+        this.fastDecoding = fastDecoding;
+        this.maxSize = Math.max(maxSize, 1);
+    }
+
+    synchronized int getMaxSize() {
+        return maxSize;
+    }
+
+    synchronized void setMaxSize(int maxSize) {
+        this.maxSize = Math.max(maxSize, 1);
+        // drop idle inflators we no longer need, busy ones are dropped on release
+        for (int i = entries.size() - 1; i >= 0 && entries.size() > this.maxSize; i--) {
+            if (!entries.get(i).busy) {
+                entries.remove(i);
+            }
+        }
+    }
+
+    /**
+     * Gets an inflator to decompress a block, waiting if all of them are busy,
+     * or if another thread is decompressing blocks in the same reset interval.
+     *
+     * @param block index of the block to decompress.
+     * @param intervalStart index of the first block in its reset interval.
+     * @return an inflator, which should be released after use.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    synchronized Entry acquire(int block, int intervalStart) throws InterruptedException {
+        while (true) {
+            Entry positioned = null;
+            Entry leastRecentlyUsed = null;
+            boolean intervalBusy = false;
+
+            for (Entry e : entries) {
+                if (e.busy) {
+                    if (e.intervalStart == intervalStart) {
+                        intervalBusy = true;
+                    }
+                    continue;
+                }
+                if (e.nextBlock >= intervalStart && e.nextBlock <= block &&
+                        (positioned == null || e.nextBlock > positioned.nextBlock)) {
+                    positioned = e;
+                }
+                if (leastRecentlyUsed == null || e.lastUsed < leastRecentlyUsed.lastUsed) {
+                    leastRecentlyUsed = e;
+                }
+            }
+
+            Entry chosen;
+            if (intervalBusy) {
+                // the busy inflator will be positioned there, wait for it.
+                chosen = null;
+            } else if (positioned != null) {
+                chosen = positioned;
+            } else if (entries.size() < maxSize) {
+                LZXInflator inflator = new LZXInflator(windowBits);
+                inflator.setFastDecoding(fastDecoding);
+                chosen = new Entry(inflator);
+                entries.add(chosen);
+            } else {
+                chosen = leastRecentlyUsed;
+            }
+
+            if (chosen != null) {
+                chosen.busy = true;
+                chosen.intervalStart = intervalStart;
+                chosen.lastUsed = ++useCounter;
+                return chosen;
+            }
+
+            wait();
+        }
+    }
+
+    synchronized void release(Entry e) {
+        e.busy = false;
+        if (entries.size() > maxSize) {
+            entries.remove(e);
+        }
+        notifyAll();
+    }
+
+    /**
+     * An inflator in the pool, with the position it has reached.
+     */
+    static class Entry {
+
+        final LZXInflator inflator;
+        /**
+         * Index of the next block this inflator can decompress without a reset,
+         * or -1 if unknown.
+         */
+        int nextBlock = -1;
+        /**
+         * If not null, block nextBlock is partly decompressed into this array,
+         * see {@link LZXInflator#decompressPartially}.
+         */
+        byte[] partialBlock = null;
+        private int intervalStart = -1;
+        private boolean busy = false;
+        private long lastUsed = 0;
+
+        Entry(LZXInflator inflator) {
+            this.inflator = inflator;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2017 chimenchen. All rights reserved.
+ */
+
+package org.jchmlib.nio;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import org.jchmlib.ChmEnumerator;
+import org.jchmlib.ChmFile;
+import org.jchmlib.ChmUnitInfo;
+
+/**
+ * The entries of a directory in a {@link ChmFileSystem}, listed from
+ * the directory tree of the CHM file.
+ */
+class ChmDirectoryStream implements DirectoryStream<Path> {
+
+    private final ChmPath dir;
+    private final String storedPath;
+    private final Filter<? super Path> filter;
+    private boolean open = true;
+    private boolean iterated = false;
+
+    /**
+     * @param dir the directory, which entries are resolved against.
+     * @param storedPath the path of the directory as stored in the CHM file.
+     * @param filter the filter of entries, or null.
+     */
+    ChmDirectoryStream(ChmPath dir, String storedPath, Filter<? super Path> filter) {
+        this.dir = dir;
+        this.storedPath = storedPath;
+        this.filter = filter;
+    }
+
+    @Override
+    public synchronized Iterator<Path> iterator() {
+        if (!open) {
+            throw new IllegalStateException("Directory stream is closed");
+        }
+        if (iterated) {
+            throw new IllegalStateException("Directory stream has been iterated");
+        }
+        iterated = true;
+
+        final List<Path> children = new ArrayList<Path>();
+        dir.getFileSystem().getChmFile().enumerateDir(storedPath, ChmFile.CHM_ENUMERATE_ALL,
+                new ChmEnumerator() {
+                    @Override
+                    public void enumerate(ChmUnitInfo ui) {
+                        String path = ui.getPath();
+                        if (path.endsWith("/")) {
+                            path = path.substring(0, path.length() - 1);
+                        }
+                        String name = path.substring(path.lastIndexOf('/') + 1);
+                        children.add(dir.resolve(name));
+                    }
+                });
+
+        final Iterator<Path> it = children.iterator();
+        return new Iterator<Path>() {
+            private Path next = null;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && isOpen() && it.hasNext()) {
+                    Path path = it.next();
+                    try {
+                        if (filter == null || filter.accept(path)) {
+                            next = path;
+                        }
+                    } catch (IOException e) {
+                        throw new DirectoryIteratorException(e);
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public Path next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Path result = next;
+                next = null;
+                return result;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private synchronized boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public synchronized void close() {
+        open = false;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2017 chimenchen. All rights reserved.
+ */
+
+package org.jchmlib.nio;
+
+import java.io.IOException;
+import java.nio.file.ReadOnlyFileSystemException;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.Map;
+import org.jchmlib.ChmUnitInfo;
+
+/**
+ * Attributes of an object in a {@link ChmFileSystem}.
+ * <p>
+ * CHM files have no timestamps for their objects, so all times are the last
+ * modified time of the CHM file.
+ */
+class ChmFileAttributes implements BasicFileAttributes {
+
+    private final static String[] NAMES = {"size", "creationTime", "lastAccessTime",
+            "lastModifiedTime", "isRegularFile", "isDirectory", "isSymbolicLink",
+            "isOther", "fileKey"};
+
+    private final ChmUnitInfo ui;
+    private final boolean directory;
+    private final FileTime time;
+
+    /**
+     * @param ui the object, or null for the root and directories without
+     * an entry of their own.
+     * @param directory whether the object is a directory.
+     * @param time last modified time of the CHM file.
+     */
+    ChmFileAttributes(ChmUnitInfo ui, boolean directory, FileTime time) {
+        this.ui = ui;
+        this.directory = directory;
+        this.time = time;
+    }
+
+    ChmUnitInfo getUnitInfo() {
+        return ui;
+    }
+
+    @Override
+    public FileTime lastModifiedTime() {
+        return time;
+    }
+
+    @Override
+    public FileTime lastAccessTime() {
+        return time;
+    }
+
+    @Override
+    public FileTime creationTime() {
+        return time;
+    }
+
+    @Override
+    public boolean isRegularFile() {
+        return !directory;
+    }
+
+    @Override
+    public boolean isDirectory() {
+        return directory;
+    }
+
+    @Override
+    public boolean isSymbolicLink() {
+        return false;
+    }
+
+    @Override
+    public boolean isOther() {
+        return false;
+    }
+
+    @Override
+    public long size() {
+        return directory || ui == null ? 0 : ui.getLength();
+    }
+
+    @Override
+    public Object fileKey() {
+        return null;
+    }
+
+    /**
+     * @param attributes names of attributes, separated by ",", or "*" for all of them,
+     * optionally prefixed by "basic:".
+     */
+    Map<String, Object> toMap(String attributes) {
+        if (attributes.startsWith("basic:")) {
+            attributes = attributes.substring("basic:".length());
+        } else if (attributes.indexOf(':') >= 0) {
+            throw new UnsupportedOperationException("Unsupported attribute view: " + attributes);
+        }
+
+        Map<String, Object> map = new HashMap<String, Object>();
+        for (String name : attributes.split(",")) {
+            if (name.equals("*")) {
+                for (String n : NAMES) {
+                    map.put(n, get(n));
+                }
+            } else {
+                map.put(name, get(name));
+            }
+        }
+        return map;
+    }
+
+    private Object get(String name) {
+        if (name.equals("size")) {
+            return size();
+        } else if (name.equals("creationTime")) {
+            return creationTime();
+        } else if (name.equals("lastAccessTime")) {
+            return lastAccessTime();
+        } else if (name.equals("lastModifiedTime")) {
+            return lastModifiedTime();
+        } else if (name.equals("isRegularFile")) {
+            return isRegularFile();
+        } else if (name.equals("isDirectory")) {
+            return isDirectory();
+        } else if (name.equals("isSymbolicLink")) {
+            return isSymbolicLink();
+        } else if (name.equals("isOther")) {
+            return isOther();
+        } else if (name.equals("fileKey")) {
+            return fileKey();
+        }
+        throw new IllegalArgumentException("Unknown attribute: " + name);
+    }
+
+    /**
+     * A view of the attributes of a path, which are read when asked for.
+     */
+    static class View implements BasicFileAttributeView {
+
+        private final ChmPath path;
+
+        View(ChmPath path) {
+            this.path = path;
+        }
+
+        @Override
+        public String name() {
+            return "basic";
+        }
+
+        @Override
+        public BasicFileAttributes readAttributes() throws IOException {
+            return path.getFileSystem().getEntry(path);
+        }
+
+        @Override
+        public void setTimes(FileTime lastModifiedTime, FileTime lastAccessTime,
+                FileTime createTime) {
+            throw new ReadOnlyFileSystemException();
+        }
+    }
+}
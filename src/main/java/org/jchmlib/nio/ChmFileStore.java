@@ -0,0 +1,92 @@
+/*
+ * Copyright 2017 chimenchen. All rights reserved.
+ */
+
+package org.jchmlib.nio;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.attribute.FileStoreAttributeView;
+
+/**
+ * The store of the objects in a {@link ChmFileSystem}, i.e. its CHM file.
+ * It is read-only, so it has no space to allocate.
+ */
+class ChmFileStore extends FileStore {
+
+    private final ChmFileSystem fs;
+
+    ChmFileStore(ChmFileSystem fs) {
+        this.fs = fs;
+    }
+
+    @Override
+    public String name() {
+        return fs.toString();
+    }
+
+    @Override
+    public String type() {
+        return "chm";
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return true;
+    }
+
+    /**
+     * @return the size of the CHM file.
+     */
+    @Override
+    public long getTotalSpace() throws IOException {
+        return Files.size(fs.getArchive());
+    }
+
+    @Override
+    public long getUsableSpace() {
+        return 0;
+    }
+
+    @Override
+    public long getUnallocatedSpace() {
+        return 0;
+    }
+
+    @Override
+    public boolean supportsFileAttributeView(Class<? extends FileAttributeView> type) {
+        return type == BasicFileAttributeView.class;
+    }
+
+    @Override
+    public boolean supportsFileAttributeView(String name) {
+        return name.equals("basic");
+    }
+
+    @Override
+    public <V extends FileStoreAttributeView> V getFileStoreAttributeView(Class<V> type) {
+        return null;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws IOException {
+        if (attribute.equals("totalSpace")) {
+            return getTotalSpace();
+        }
+        if (attribute.equals("usableSpace")) {
+            return getUsableSpace();
+        }
+        if (attribute.equals("unallocatedSpace")) {
+            return getUnallocatedSpace();
+        }
+        throw new UnsupportedOperationException("Unsupported attribute: " + attribute);
+    }
+
+    @Override
+    public String toString() {
+        return name() + " (" + type() + ")";
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright 2017 chimenchen. All rights reserved.
+ */
+
+package org.jchmlib.nio;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.ClosedFileSystemException;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.UserPrincipalLookupService;
+import java.util.Collections;
+import java.util.Set;
+import java.util.regex.Pattern;
+import org.jchmlib.ChmEnumerator;
+import org.jchmlib.ChmFile;
+import org.jchmlib.ChmFileOptions;
+import org.jchmlib.ChmStopEnumeration;
+import org.jchmlib.ChmUnitInfo;
+
+/**
+ * A read-only file system of the objects in a CHM file, under the root "/".
+ * <p>
+ * Directories are objects whose paths end with "/" in the CHM file, and
+ * directories only implied by the paths of other objects.
+ * Paths of special objects not under "/", like "::DataSpace/NameList",
+ * can't be reached.
+ *
+ * @see ChmFileSystemProvider
+ */
+public class ChmFileSystem extends FileSystem {
+
+    private final ChmFileSystemProvider provider;
+    private final Path archive;
+    private final ChmFile chmFile;
+    private final FileTime lastModifiedTime;
+    private final ChmPath root;
+    private final ChmFileStore fileStore;
+    private volatile boolean open = true;
+
+    ChmFileSystem(ChmFileSystemProvider provider, Path archive, ChmFileOptions options)
+            throws IOException {
+        this.provider = provider;
+        this.archive = archive;
+        lastModifiedTime = Files.getLastModifiedTime(archive);
+        if (archive.getFileSystem() == FileSystems.getDefault()) {
+            // a file name allows sidecars and the content cache
+            chmFile = new ChmFile(archive.toString(), options);
+        } else {
+            chmFile = new ChmFile(Files.newByteChannel(archive), options);
+        }
+        root = new ChmPath(this, "/");
+        fileStore = new ChmFileStore(this);
+    }
+
+    /**
+     * @return the CHM file, e.g. to get its topics tree.
+     */
+    public ChmFile getChmFile() {
+        return chmFile;
+    }
+
+    /**
+     * @return the path of the CHM file.
+     */
+    public Path getArchive() {
+        return archive;
+    }
+
+    ChmPath getRoot() {
+        return root;
+    }
+
+    ChmFileStore getFileStore() {
+        return fileStore;
+    }
+
+    URI toUri(String path) {
+        try {
+            // quotes characters of the path which aren't allowed in URIs, like spaces
+            String rawPath = new URI(null, null, path, null).getRawPath();
+            return new URI(provider.getScheme() + ":" + archive.toUri() + "!" + rawPath);
+        } catch (URISyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    void ensureOpen() {
+        if (!open) {
+            throw new ClosedFileSystemException();
+        }
+    }
+
+    /**
+     * Finds the object at a path.
+     *
+     * @throws NoSuchFileException if there is no such object.
+     */
+    ChmFileAttributes getEntry(ChmPath path) throws IOException {
+        String p = getStoredPath(path);
+        if (p.equals("/")) {
+            return new ChmFileAttributes(null, true, lastModifiedTime);
+        }
+
+        ChmUnitInfo ui = chmFile.resolveObject(p);
+        if (ui != null) {
+            return new ChmFileAttributes(ui, false, lastModifiedTime);
+        }
+        // a directory, maybe without an entry of its own
+        return new ChmFileAttributes(chmFile.resolveObject(p + "/"), true, lastModifiedTime);
+    }
+
+    /**
+     * Finds the path of an object as it is stored in the CHM file.
+     * Objects are looked up ignoring case, as in CHM files, so the stored
+     * path may differ from the given one in case.
+     *
+     * @return the absolute stored path, without "/" at the end of directories.
+     * @throws NoSuchFileException if there is no such object.
+     */
+    String getStoredPath(ChmPath path) throws NoSuchFileException {
+        ensureOpen();
+        String p = getStoredPath(path.toAbsolutePath().normalize().toString());
+        if (p == null) {
+            throw new NoSuchFileException(path.toString());
+        }
+        return p;
+    }
+
+    private String getStoredPath(String p) {
+        if (p.equals("/")) {
+            return p;
+        }
+        ChmUnitInfo ui = chmFile.resolveObject(p);
+        if (ui == null) {
+            ui = chmFile.resolveObject(p + "/");
+        }
+        if (ui != null) {
+            return trimSlash(ui.getPath());
+        }
+
+        // a directory only implied by the objects under it
+        int index = p.lastIndexOf('/');
+        String parent = getStoredPath(index == 0 ? "/" : p.substring(0, index));
+        if (parent == null) {
+            return null;
+        }
+        final String name = p.substring(index + 1);
+        final String[] found = {null};
+        chmFile.enumerateDir(parent, ChmFile.CHM_ENUMERATE_ALL, new ChmEnumerator() {
+            @Override
+            public void enumerate(ChmUnitInfo ui) throws ChmStopEnumeration {
+                String child = ui.getPath();
+                if (child.endsWith("/")) {
+                    child = trimSlash(child);
+                    if (child.substring(child.lastIndexOf('/') + 1).equalsIgnoreCase(name)) {
+                        found[0] = child;
+                        throw new ChmStopEnumeration();
+                    }
+                }
+            }
+        });
+        return found[0];
+    }
+
+    private static String trimSlash(String path) {
+        return path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+    }
+
+    @Override
+    public ChmFileSystemProvider provider() {
+        return provider;
+    }
+
+    /**
+     * Closes the CHM file. Channels opened before may still be read.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (!open) {
+            return;
+        }
+        open = false;
+        provider.removeFileSystem(this);
+        chmFile.close();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return true;
+    }
+
+    @Override
+    public String getSeparator() {
+        return "/";
+    }
+
+    @Override
+    public Iterable<Path> getRootDirectories() {
+        return Collections.<Path>singletonList(root);
+    }
+
+    @Override
+    public Iterable<FileStore> getFileStores() {
+        return Collections.<FileStore>singletonList(fileStore);
+    }
+
+    @Override
+    public Set<String> supportedFileAttributeViews() {
+        return Collections.singleton("basic");
+    }
+
+    @Override
+    public ChmPath getPath(String first, String... more) {
+        StringBuilder sb = new StringBuilder(first);
+        for (String s : more) {
+            if (s.length() > 0) {
+                if (sb.length() > 0) {
+                    sb.append('/');
+                }
+                sb.append(s);
+            }
+        }
+        return new ChmPath(this, sb.toString());
+    }
+
+    @Override
+    public PathMatcher getPathMatcher(String syntaxAndPattern) {
+        int index = syntaxAndPattern.indexOf(':');
+        if (index <= 0) {
+            throw new IllegalArgumentException("Missing syntax: " + syntaxAndPattern);
+        }
+        String syntax = syntaxAndPattern.substring(0, index);
+        String pattern = syntaxAndPattern.substring(index + 1);
+        final Pattern regex;
+        if (syntax.equalsIgnoreCase("regex")) {
+            regex = Pattern.compile(pattern);
+        } else if (syntax.equalsIgnoreCase("glob")) {
+            regex = Pattern.compile(globToRegex(pattern));
+        } else {
+            throw new UnsupportedOperationException("Unsupported syntax: " + syntax);
+        }
+        return new PathMatcher() {
+            @Override
+            public boolean matches(Path path) {
+                return regex.matcher(path.toString()).matches();
+            }
+        };
+    }
+
+    /**
+     * Converts a glob, as described in {@link FileSystem#getPathMatcher(String)},
+     * to a regular expression.
+     */
+    static String globToRegex(String glob) {
+        StringBuilder sb = new StringBuilder();
+        boolean inGroup = false;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            switch (c) {
+                case '\\':
+                    if (++i < glob.length()) {
+                        sb.append(Pattern.quote(String.valueOf(glob.charAt(i))));
+                    }
+                    break;
+                case '*':
+                    if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                        sb.append(".*");
+                        i++;
+                    } else {
+                        sb.append("[^/]*");
+                    }
+                    break;
+                case '?':
+                    sb.append("[^/]");
+                    break;
+                case '[':
+                    int end = glob.indexOf(']', i + 1);
+                    if (end < 0) {
+                        throw new IllegalArgumentException("Missing ']' in " + glob);
+                    }
+                    String set = glob.substring(i + 1, end);
+                    if (set.startsWith("!")) {
+                        set = "^" + set.substring(1);
+                    }
+                    sb.append('[').append(set.replace("\\", "\\\\").replace("[", "\\["))
+                            .append(']');
+                    i = end;
+                    break;
+                case '{':
+                    sb.append("(?:");
+                    inGroup = true;
+                    break;
+                case '}':
+                    sb.append(inGroup ? ")" : "\\}");
+                    inGroup = false;
+                    break;
+                case ',':
+                    sb.append(inGroup ? "|" : ",");
+                    break;
+                default:
+                    if (Character.isLetterOrDigit(c) || c == '/') {
+                        sb.append(c);
+                    } else {
+                        sb.append('\\').append(c);
+                    }
+            }
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public UserPrincipalLookupService getUserPrincipalLookupService() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public WatchService newWatchService() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String toString() {
+        return archive.toString();
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright 2017 chimenchen. All rights reserved.
+ */
+
+package org.jchmlib.nio;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.AccessMode;
+import java.nio.file.CopyOption;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.ReadOnlyFileSystemException;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import org.jchmlib.ChmFileOptions;
+
+/**
+ * A provider of read-only file systems of the objects in CHM files.
+ * <p>
+ * It is registered as an installed provider, so a CHM file can be opened
+ * with {@code FileSystems.newFileSystem(path, null)}, or with a URI like
+ * {@code chm:file:///books/manual.chm}. Paths in it can also be got from
+ * URIs like {@code chm:file:///books/manual.chm!/html/index.htm}
+ * once it is open.
+ * <p>
+ * The environment may have a {@link ChmFileOptions} under {@link #OPTIONS},
+ * which is used to open the CHM file.
+ */
+public class ChmFileSystemProvider extends FileSystemProvider {
+
+    /**
+     * Key of the {@link ChmFileOptions} in the environment of a new file system.
+     */
+    public final static String OPTIONS = "options";
+    private final static byte[] MAGIC = {'I', 'T', 'S', 'F'};
+
+    /**
+     * File systems opened by URI, by the real path of their CHM files.
+     */
+    private final HashMap<Path, ChmFileSystem> fileSystems = new HashMap<Path, ChmFileSystem>();
+
+    @Override
+    public String getScheme() {
+        return "chm";
+    }
+
+    @Override
+    public FileSystem newFileSystem(URI uri, Map<String, ?> env) throws IOException {
+        Path archive = getArchive(uri).toRealPath();
+        synchronized (fileSystems) {
+            if (fileSystems.containsKey(archive)) {
+                throw new FileSystemAlreadyExistsException(archive.toString());
+            }
+            ChmFileSystem fs = new ChmFileSystem(this, archive, getOptions(env));
+            fileSystems.put(archive, fs);
+            return fs;
+        }
+    }
+
+    /**
+     * Opens a file system of a CHM file, which isn't registered for
+     * {@link #getFileSystem(URI)}.
+     *
+     * @throws UnsupportedOperationException if the file is not a CHM file.
+     */
+    @Override
+    public FileSystem newFileSystem(Path path, Map<String, ?> env) throws IOException {
+        if (!isChmFile(path)) {
+            throw new UnsupportedOperationException("Not a CHM file: " + path);
+        }
+        return new ChmFileSystem(this, path, getOptions(env));
+    }
+
+    private static boolean isChmFile(Path path) throws IOException {
+        InputStream in = Files.newInputStream(path);
+        try {
+            byte[] bytes = new byte[MAGIC.length];
+            int n = 0;
+            while (n < bytes.length) {
+                int count = in.read(bytes, n, bytes.length - n);
+                if (count < 0) {
+                    return false;
+                }
+                n += count;
+            }
+            for (int i = 0; i < bytes.length; i++) {
+                if (bytes[i] != MAGIC[i]) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static ChmFileOptions getOptions(Map<String, ?> env) {
+        Object options = env == null ? null : env.get(OPTIONS);
+        if (options instanceof ChmFileOptions) {
+            return (ChmFileOptions) options;
+        }
+        return new ChmFileOptions();
+    }
+
+    @Override
+    public FileSystem getFileSystem(URI uri) {
+        Path archive;
+        try {
+            archive = getArchive(uri).toRealPath();
+        } catch (IOException e) {
+            throw new FileSystemNotFoundException(uri.toString());
+        }
+        synchronized (fileSystems) {
+            ChmFileSystem fs = fileSystems.get(archive);
+            if (fs == null) {
+                throw new FileSystemNotFoundException(uri.toString());
+            }
+            return fs;
+        }
+    }
+
+    void removeFileSystem(ChmFileSystem fs) {
+        synchronized (fileSystems) {
+            if (fileSystems.get(fs.getArchive()) == fs) {
+                fileSystems.remove(fs.getArchive());
+            }
+        }
+    }
+
+    @Override
+    public Path getPath(URI uri) {
+        String spec = uri.getRawSchemeSpecificPart();
+        int index = spec.indexOf("!/");
+        if (index < 0) {
+            throw new IllegalArgumentException("URI has no path in the CHM file: " + uri);
+        }
+        String path;
+        try {
+            path = new URI(spec.substring(index + 1)).getPath();
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException("Invalid URI: " + uri, e);
+        }
+        return getFileSystem(uri).getPath(path);
+    }
+
+    /**
+     * @return the path of the CHM file in a URI, without the path in the CHM file.
+     */
+    private Path getArchive(URI uri) {
+        if (!getScheme().equalsIgnoreCase(uri.getScheme())) {
+            throw new IllegalArgumentException("URI scheme is not " + getScheme() + ": " + uri);
+        }
+        // the URI of the CHM file is parsed again, so it must stay quoted
+        String spec = uri.getRawSchemeSpecificPart();
+        int index = spec.indexOf("!/");
+        if (index >= 0) {
+            spec = spec.substring(0, index);
+        }
+        try {
+            return Paths.get(new URI(spec));
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException("Invalid URI: " + uri, e);
+        }
+    }
+
+    private static ChmPath toChmPath(Path path) {
+        if (path == null) {
+            throw new NullPointerException();
+        }
+        if (!(path instanceof ChmPath)) {
+            throw new ProviderMismatchException();
+        }
+        return (ChmPath) path;
+    }
+
+    @Override
+    public SeekableByteChannel newByteChannel(Path path, Set<? extends OpenOption> options,
+            FileAttribute<?>... attrs) throws IOException {
+        if (options.contains(StandardOpenOption.WRITE) ||
+                options.contains(StandardOpenOption.APPEND)) {
+            throw new ReadOnlyFileSystemException();
+        }
+        ChmPath chmPath = toChmPath(path);
+        ChmFileAttributes entry = chmPath.getFileSystem().getEntry(chmPath);
+        if (entry.isDirectory()) {
+            throw new FileSystemException(path.toString(), null, "Is a directory");
+        }
+        return chmPath.getFileSystem().getChmFile().openChannel(entry.getUnitInfo());
+    }
+
+    @Override
+    public DirectoryStream<Path> newDirectoryStream(Path dir,
+            DirectoryStream.Filter<? super Path> filter) throws IOException {
+        ChmPath chmPath = toChmPath(dir);
+        if (!chmPath.getFileSystem().getEntry(chmPath).isDirectory()) {
+            throw new NotDirectoryException(dir.toString());
+        }
+        return new ChmDirectoryStream(chmPath, chmPath.getFileSystem().getStoredPath(chmPath),
+                filter);
+    }
+
+    @Override
+    public void createDirectory(Path dir, FileAttribute<?>... attrs) {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public void delete(Path path) {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public void copy(Path source, Path target, CopyOption... options) {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public void move(Path source, Path target, CopyOption... options) {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public boolean isSameFile(Path path, Path path2) throws IOException {
+        if (path.equals(path2)) {
+            return true;
+        }
+        if (!(path2 instanceof ChmPath) ||
+                toChmPath(path).getFileSystem() != ((ChmPath) path2).getFileSystem()) {
+            return false;
+        }
+        return path.toRealPath().equals(path2.toRealPath());
+    }
+
+    @Override
+    public boolean isHidden(Path path) {
+        return false;
+    }
+
+    @Override
+    public FileStore getFileStore(Path path) throws IOException {
+        ChmPath chmPath = toChmPath(path);
+        chmPath.getFileSystem().getEntry(chmPath);
+        return chmPath.getFileSystem().getFileStore();
+    }
+
+    @Override
+    public void checkAccess(Path path, AccessMode... modes) throws IOException {
+        ChmPath chmPath = toChmPath(path);
+        chmPath.getFileSystem().getEntry(chmPath);
+        for (AccessMode mode : modes) {
+            if (mode != AccessMode.READ) {
+                throw new AccessDeniedException(path.toString());
+            }
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <V extends FileAttributeView> V getFileAttributeView(Path path, Class<V> type,
+            LinkOption... options) {
+        if (type == BasicFileAttributeView.class) {
+            return (V) new ChmFileAttributes.View(toChmPath(path));
+        }
+        return null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <A extends BasicFileAttributes> A readAttributes(Path path, Class<A> type,
+            LinkOption... options) throws IOException {
+        if (type != BasicFileAttributes.class) {
+            throw new UnsupportedOperationException("Unsupported attributes: " + type);
+        }
+        ChmPath chmPath = toChmPath(path);
+        return (A) chmPath.getFileSystem().getEntry(chmPath);
+    }
+
+    @Override
+    public Map<String, Object> readAttributes(Path path, String attributes,
+            LinkOption... options) throws IOException {
+        ChmPath chmPath = toChmPath(path);
+        return chmPath.getFileSystem().getEntry(chmPath).toMap(attributes);
+    }
+
+    @Override
+    public void setAttribute(Path path, String attribute, Object value,
+            LinkOption... options) {
+        throw new ReadOnlyFileSystemException();
+    }
+}
@@ -0,0 +1,349 @@
+/*
+ * Copyright 2017 chimenchen. All rights reserved.
+ */
+
+package org.jchmlib.nio;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A path in a {@link ChmFileSystem}, e.g. "/html/index.htm".
+ * <p>
+ * Paths are separated by "/". Absolute paths start with "/", and, unlike paths
+ * in the directory of a CHM file, paths of directories don't end with "/".
+ */
+class ChmPath implements Path {
+
+    private final ChmFileSystem fs;
+    /**
+     * The path, without redundant separators.
+     */
+    private final String path;
+    private volatile String[] names = null;
+
+    ChmPath(ChmFileSystem fs, String path) {
+        this.fs = fs;
+        this.path = normalizeSeparators(path);
+    }
+
+    private static String normalizeSeparators(String path) {
+        StringBuilder sb = new StringBuilder(path.length());
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c == '/' && sb.length() > 0 && sb.charAt(sb.length() - 1) == '/') {
+                continue;
+            }
+            sb.append(c);
+        }
+        if (sb.length() > 1 && sb.charAt(sb.length() - 1) == '/') {
+            sb.setLength(sb.length() - 1);
+        }
+        return sb.toString();
+    }
+
+    private String[] getNames() {
+        String[] result = names;
+        if (result == null) {
+            String relative = isAbsolute() ? path.substring(1) : path;
+            if (relative.length() == 0) {
+                // the root has no names, the empty path has an empty one
+                result = isAbsolute() ? new String[0] : new String[]{""};
+            } else {
+                result = relative.split("/");
+            }
+            names = result;
+        }
+        return result;
+    }
+
+    private ChmPath toChmPath(Path other) {
+        if (other == null) {
+            throw new NullPointerException();
+        }
+        if (!(other instanceof ChmPath) || ((ChmPath) other).fs != fs) {
+            throw new ProviderMismatchException();
+        }
+        return (ChmPath) other;
+    }
+
+    private ChmPath create(String[] names, int from, int to, boolean absolute) {
+        StringBuilder sb = new StringBuilder();
+        if (absolute) {
+            sb.append('/');
+        }
+        for (int i = from; i < to; i++) {
+            if (i > from) {
+                sb.append('/');
+            }
+            sb.append(names[i]);
+        }
+        return new ChmPath(fs, sb.toString());
+    }
+
+    @Override
+    public ChmFileSystem getFileSystem() {
+        return fs;
+    }
+
+    @Override
+    public boolean isAbsolute() {
+        return path.startsWith("/");
+    }
+
+    @Override
+    public Path getRoot() {
+        return isAbsolute() ? fs.getRoot() : null;
+    }
+
+    @Override
+    public Path getFileName() {
+        String[] names = getNames();
+        if (names.length == 0) {
+            return null;
+        }
+        if (names.length == 1 && !isAbsolute()) {
+            return this;
+        }
+        return new ChmPath(fs, names[names.length - 1]);
+    }
+
+    @Override
+    public Path getParent() {
+        String[] names = getNames();
+        if (names.length == 0 || (names.length == 1 && !isAbsolute())) {
+            return null;
+        }
+        return create(names, 0, names.length - 1, isAbsolute());
+    }
+
+    @Override
+    public int getNameCount() {
+        return getNames().length;
+    }
+
+    @Override
+    public Path getName(int index) {
+        String[] names = getNames();
+        if (index < 0 || index >= names.length) {
+            throw new IllegalArgumentException();
+        }
+        return new ChmPath(fs, names[index]);
+    }
+
+    @Override
+    public Path subpath(int beginIndex, int endIndex) {
+        String[] names = getNames();
+        if (beginIndex < 0 || beginIndex >= names.length || endIndex > names.length ||
+                beginIndex >= endIndex) {
+            throw new IllegalArgumentException();
+        }
+        return create(names, beginIndex, endIndex, false);
+    }
+
+    @Override
+    public boolean startsWith(Path other) {
+        if (!(other instanceof ChmPath) || ((ChmPath) other).fs != fs) {
+            return false;
+        }
+        ChmPath that = (ChmPath) other;
+        if (that.isAbsolute() != isAbsolute()) {
+            return false;
+        }
+        String[] names = getNames();
+        String[] prefix = that.getNames();
+        if (prefix.length > names.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (!prefix[i].equals(names[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean startsWith(String other) {
+        return startsWith(fs.getPath(other));
+    }
+
+    @Override
+    public boolean endsWith(Path other) {
+        if (!(other instanceof ChmPath) || ((ChmPath) other).fs != fs) {
+            return false;
+        }
+        ChmPath that = (ChmPath) other;
+        if (that.isAbsolute()) {
+            return equals(that);
+        }
+        String[] names = getNames();
+        String[] suffix = that.getNames();
+        if (suffix.length > names.length) {
+            return false;
+        }
+        for (int i = 0; i < suffix.length; i++) {
+            if (!suffix[i].equals(names[names.length - suffix.length + i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean endsWith(String other) {
+        return endsWith(fs.getPath(other));
+    }
+
+    @Override
+    public Path normalize() {
+        String[] names = getNames();
+        ArrayList<String> result = new ArrayList<String>();
+        for (String name : names) {
+            if (name.equals(".")) {
+                continue;
+            }
+            if (name.equals("..")) {
+                if (!result.isEmpty() && !result.get(result.size() - 1).equals("..")) {
+                    result.remove(result.size() - 1);
+                    continue;
+                }
+                if (isAbsolute()) {
+                    // nothing above the root
+                    continue;
+                }
+            }
+            result.add(name);
+        }
+        return create(result.toArray(new String[result.size()]), 0, result.size(),
+                isAbsolute());
+    }
+
+    @Override
+    public Path resolve(Path other) {
+        ChmPath that = toChmPath(other);
+        if (that.isAbsolute()) {
+            return that;
+        }
+        if (that.path.length() == 0) {
+            return this;
+        }
+        if (path.length() == 0) {
+            return that;
+        }
+        return new ChmPath(fs, path + "/" + that.path);
+    }
+
+    @Override
+    public Path resolve(String other) {
+        return resolve(fs.getPath(other));
+    }
+
+    @Override
+    public Path resolveSibling(Path other) {
+        toChmPath(other);
+        Path parent = getParent();
+        return parent == null ? other : parent.resolve(other);
+    }
+
+    @Override
+    public Path resolveSibling(String other) {
+        return resolveSibling(fs.getPath(other));
+    }
+
+    @Override
+    public Path relativize(Path other) {
+        ChmPath that = toChmPath(other);
+        if (that.isAbsolute() != isAbsolute()) {
+            throw new IllegalArgumentException("Only paths of the same type can be relativized");
+        }
+        if (equals(that)) {
+            return new ChmPath(fs, "");
+        }
+        String[] names = path.length() == 0 ? new String[0] : getNames();
+        String[] otherNames = that.path.length() == 0 ? new String[0] : that.getNames();
+        int common = 0;
+        while (common < names.length && common < otherNames.length &&
+                names[common].equals(otherNames[common])) {
+            common++;
+        }
+        List<String> result = new ArrayList<String>();
+        for (int i = common; i < names.length; i++) {
+            result.add("..");
+        }
+        result.addAll(Arrays.asList(otherNames).subList(common, otherNames.length));
+        return create(result.toArray(new String[result.size()]), 0, result.size(), false);
+    }
+
+    @Override
+    public URI toUri() {
+        return fs.toUri(toAbsolutePath().toString());
+    }
+
+    @Override
+    public ChmPath toAbsolutePath() {
+        return isAbsolute() ? this : new ChmPath(fs, "/" + path);
+    }
+
+    @Override
+    public Path toRealPath(LinkOption... options) throws IOException {
+        return new ChmPath(fs, fs.getStoredPath(this));
+    }
+
+    @Override
+    public File toFile() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public WatchKey register(WatchService watcher, WatchEvent.Kind<?>[] events,
+            WatchEvent.Modifier... modifiers) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public WatchKey register(WatchService watcher, WatchEvent.Kind<?>... events) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Iterator<Path> iterator() {
+        ArrayList<Path> result = new ArrayList<Path>();
+        for (int i = 0; i < getNameCount(); i++) {
+            result.add(getName(i));
+        }
+        return result.iterator();
+    }
+
+    @Override
+    public int compareTo(Path other) {
+        return path.compareTo(toChmPath(other).path);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof ChmPath && ((ChmPath) obj).fs == fs &&
+                ((ChmPath) obj).path.equals(path);
+    }
+
+    @Override
+    public int hashCode() {
+        return path.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return path;
+    }
+}
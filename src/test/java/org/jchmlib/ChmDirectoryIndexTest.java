@@ -0,0 +1,65 @@
+/*
+ * Copyright 2017 chimenchen. All rights reserved.
+ */
+
+package org.jchmlib;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ChmDirectoryIndexTest {
+
+    private ChmFile eager;
+    private ChmFile lazy;
+
+    @Before
+    public void setUp() throws Exception {
+        // paths differing in case only, some of them across directory pages
+        String path = new File(getClass().getResource("/duplicates.chm").toURI()).getPath();
+        eager = new ChmFile(path);
+        lazy = new ChmFile(path, new ChmFileOptions().setLazyDirectory(true));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        eager.close();
+        lazy.close();
+    }
+
+    @Test
+    public void lazyLookupsMatchEagerOnes() {
+        ChmCollectFilesEnumerator e = new ChmCollectFilesEnumerator();
+        eager.enumerate(ChmFile.CHM_ENUMERATE_ALL, e);
+        for (ChmUnitInfo ui : e.files) {
+            for (String path : new String[]{ui.getPath(), ui.getPath().toLowerCase(),
+                    ui.getPath().toUpperCase()}) {
+                ChmUnitInfo expected = eager.resolveObject(path);
+                ChmUnitInfo actual = lazy.resolveObject(path);
+                assertNotNull(path, expected);
+                assertNotNull(path, actual);
+                assertEquals(path, expected.getPath(), actual.getPath());
+                assertEquals(path, expected.getStart(), actual.getStart());
+                assertEquals(path, expected.getLength(), actual.getLength());
+                assertEquals(path, expected.isCompressed(), actual.isCompressed());
+                assertArrayEquals(path, bytes(eager.retrieveObject(expected)),
+                        bytes(lazy.retrieveObject(actual)));
+            }
+        }
+    }
+
+    private static byte[] bytes(ByteBuffer buf) {
+        if (buf == null) {
+            return null;
+        }
+        byte[] bytes = new byte[buf.remaining()];
+        buf.get(bytes);
+        return bytes;
+    }
+}
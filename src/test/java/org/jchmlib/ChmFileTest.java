@@ -0,0 +1,98 @@
+/*
+ * Copyright 2017 chimenchen. All rights reserved.
+ */
+
+package org.jchmlib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ChmFileTest {
+
+    private String path;
+    private ChmFile chmFile;
+    /**
+     * The compressed content section, decompressed one reset interval at a time.
+     */
+    private byte[] content;
+    private List<ChmUnitInfo> compressed;
+
+    @Before
+    public void setUp() throws Exception {
+        path = new File(getClass().getResource("/test.chm").toURI()).getPath();
+        ChmFile reference = new ChmFile(path);
+        int count = reference.getResetIntervalCount();
+        content = new byte[(int) reference.getResetIntervalStart(count)];
+        for (int i = 0; i < count; i++) {
+            ByteBuffer buf = reference.decompressResetInterval(i);
+            assertNotNull(buf);
+            buf.get(content, (int) reference.getResetIntervalStart(i), buf.remaining());
+        }
+
+        ChmCollectFilesEnumerator e = new ChmCollectFilesEnumerator();
+        reference.enumerate(ChmFile.CHM_ENUMERATE_ALL, e);
+        compressed = new ArrayList<ChmUnitInfo>();
+        for (ChmUnitInfo ui : e.files) {
+            if (ui.isCompressed() && ui.getLength() > 0) {
+                compressed.add(ui);
+            }
+        }
+        reference.close();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (chmFile != null) {
+            chmFile.close();
+        }
+    }
+
+    @Test
+    public void readsResumedFromCheckpoints() throws Exception {
+        chmFile = new ChmFile(path);
+        chmFile.setInflatorCheckpoints(1, 1 << 20);
+        // every read decompresses, from the reset point or a checkpoint
+        chmFile.getBlockCache().setMaxBytes(0);
+        chmFile.setInflatorPoolSize(1);
+        checkRandomReads(new Random(3), 40000);
+    }
+
+    @Test
+    public void readsPartiallyDecompressedBlocks() throws Exception {
+        chmFile = new ChmFile(path);
+        chmFile.getBlockCache().setMaxBytes(0);
+        // small reads, decompressing blocks only as far as needed
+        checkRandomReads(new Random(4), 300);
+
+        chmFile.getBlockCache().setMaxBytes(1 << 20);
+        // small reads mixed with longer ones, resuming partially decompressed blocks
+        checkRandomReads(new Random(5), 40000);
+    }
+
+    private void checkRandomReads(Random random, int maxLen) {
+        for (int i = 0; i < 2000; i++) {
+            ChmUnitInfo ui = compressed.get(random.nextInt(compressed.size()));
+            long addr = (long) (random.nextDouble() * ui.getLength());
+            int len = 1 + random.nextInt(maxLen);
+            ByteBuffer buf = random.nextBoolean() ? chmFile.retrieveObject(ui, addr, len)
+                    : chmFile.retrieveObjectView(ui, addr, len);
+            assertNotNull(ui.getPath(), buf);
+
+            int expectedLen = (int) Math.min(len, ui.getLength() - addr);
+            assertEquals(ui.getPath() + " at " + addr, expectedLen, buf.remaining());
+            for (int k = 0; k < expectedLen; k++) {
+                assertEquals(ui.getPath() + " at " + (addr + k),
+                        content[(int) (ui.getStart() + addr + k)], buf.get());
+            }
+        }
+    }
+}
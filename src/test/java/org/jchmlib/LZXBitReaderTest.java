@@ -0,0 +1,71 @@
+/*
+ * Copyright 2017 chimenchen. All rights reserved.
+ */
+
+package org.jchmlib;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import org.junit.Test;
+
+public class LZXBitReaderTest {
+
+    @Test
+    public void readsSameBitsAsBitReader() {
+        Random random = new Random(1);
+        for (int round = 0; round < 200; round++) {
+            byte[] data = new byte[random.nextInt(100)];
+            random.nextBytes(data);
+            BitReader expected = new BitReader(ByteBuffer.wrap(data), true);
+            LZXBitReader actual = new LZXBitReader();
+            actual.init(toBuffer(data, round % 2 == 0));
+
+            // past the end of input, both read zeros
+            for (int bits = 0; bits < data.length * 8 + 100; ) {
+                int n = random.nextInt(8) == 0 ? 24 : 1 + random.nextInt(17);
+                assertEquals("round " + round + " bit " + bits,
+                        expected.readBits(n), actual.readBits(n));
+                bits += n;
+            }
+        }
+    }
+
+    @Test
+    public void readsRawBytesAfterAlignment() {
+        Random random = new Random(2);
+        byte[] data = new byte[64];
+        random.nextBytes(data);
+        ByteBuffer little = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        for (int bits = 0; bits < 256; bits++) {
+            LZXBitReader reader = new LZXBitReader();
+            reader.init(toBuffer(data, bits % 2 == 0));
+            for (int n = bits; n > 0; n -= Math.min(n, 16)) {
+                reader.readBits(Math.min(n, 16));
+            }
+            reader.alignToBytes();
+            // 1 to 16 bits of padding
+            int offset = (bits / 16 + 1) * 2;
+            assertEquals("after " + bits + " bits", little.getInt(offset), reader.readRawInt());
+
+            byte[] raw = new byte[8];
+            int n = reader.readRawBytes(raw, 0, raw.length);
+            assertEquals(Math.min(raw.length, data.length - offset - 4), n);
+            for (int i = 0; i < n; i++) {
+                assertEquals(data[offset + 4 + i], raw[i]);
+            }
+        }
+    }
+
+    private static ByteBuffer toBuffer(byte[] data, boolean direct) {
+        if (!direct) {
+            return ByteBuffer.wrap(data);
+        }
+        ByteBuffer bb = ByteBuffer.allocateDirect(data.length);
+        bb.put(data);
+        bb.flip();
+        return bb;
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2017 chimenchen. All rights reserved.
+ */
+
+package org.jchmlib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LZXInflatorTest {
+
+    private ChmFile original;
+    private ChmFile fast;
+
+    @Before
+    public void setUp() throws Exception {
+        String path = new File(getClass().getResource("/test.chm").toURI()).getPath();
+        original = new ChmFile(path, new ChmFileOptions().setFastLzxDecoding(false));
+        fast = new ChmFile(path, new ChmFileOptions().setFastLzxDecoding(true));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        original.close();
+        fast.close();
+    }
+
+    @Test
+    public void fastDecoderMatchesOriginal() {
+        int count = original.getResetIntervalCount();
+        assertTrue(count > 1);
+        for (int i = 0; i < count; i++) {
+            ByteBuffer expected = original.decompressResetInterval(i);
+            assertNotNull("reset interval " + i, expected);
+            assertEquals("reset interval " + i, expected, fast.decompressResetInterval(i));
+        }
+    }
+
+    @Test
+    public void decodesKnownContent() {
+        ChmUnitInfo zeros = fast.resolveObject("/Mixed Case/zeros.bin");
+        ByteBuffer buf = fast.retrieveObject(zeros);
+        assertEquals(zeros.getLength(), buf.remaining());
+        while (buf.hasRemaining()) {
+            assertEquals(0, buf.get());
+        }
+
+        ChmUnitInfo page = fast.resolveObject("/html/p1.html");
+        String text = fast.retrieveObjectAsString(page);
+        assertTrue(text.startsWith("<html><body>"));
+        assertTrue(text.endsWith("</body></html>"));
+    }
+}